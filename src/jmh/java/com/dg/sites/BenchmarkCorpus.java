@@ -0,0 +1,98 @@
+package com.dg.sites;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Random;
+
+/**
+ * Fixed set of screenshots the benchmarks run on. Generated from a seed instead of checked in, so every run and
+ * every machine sees exactly the same pixels.
+ *
+ * @author doc
+ */
+final class BenchmarkCorpus {
+    // Laptop, desktop and 4k screens
+    static final String[] RESOLUTIONS = { "1366x768", "1920x1080", "3840x2160" };
+
+    // What browsers and screenshot tools send
+    static final String[] FORMATS = { "png", "jpg", "bmp", "gif" };
+
+    private BenchmarkCorpus() {
+    }
+
+    static int width(final String resolution) {
+        return Integer.parseInt(resolution.substring(0, resolution.indexOf('x')));
+    }
+
+    static int height(final String resolution) {
+        return Integer.parseInt(resolution.substring(resolution.indexOf('x') + 1));
+    }
+
+    /**
+     * Flat areas, gradients and some noise, which is roughly what screenshots consist of.
+     */
+    static BufferedImage screenshot(final int width, final int height, final int imageType) {
+        final BufferedImage image = new BufferedImage(width, height, imageType);
+        final Random random = new Random(42);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int rgb;
+
+                if (y < height / 3) {
+                    rgb = 0xff202830;
+                } else if (x < width / 2) {
+                    rgb = 0xff000000 | (x * 255 / width) << 16 | (y * 255 / height) << 8 | 0x80;
+                } else {
+                    rgb = 0xff000000 | random.nextInt(0x1000000);
+                }
+
+                image.setRGB(x, y, rgb);
+            }
+        }
+
+        return image;
+    }
+
+    /**
+     * Screenshot of the resolution encoded the way an upload of that format arrives.
+     */
+    static byte[] encoded(final String resolution, final String format) {
+        // GIF writer needs an indexed image, it is not converted for us
+        final int imageType = "gif".equals(format) ? BufferedImage.TYPE_BYTE_INDEXED : BufferedImage.TYPE_3BYTE_BGR;
+        final BufferedImage image = screenshot(width(resolution), height(resolution), imageType);
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        try {
+            if (!ImageIO.write(image, format, output)) {
+                throw new IllegalArgumentException("No writer for " + format);
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return output.toByteArray();
+    }
+
+    /**
+     * Distinct valid name for every index below {@link NameAllocator#TOTAL_NAMES}.
+     */
+    static String name(int index) {
+        final char[] c = NameAllocator.CONSONANTS;
+        final char[] v = NameAllocator.VOWELS;
+        final char[] name = new char[5];
+
+        for (int position = 4; position >= 0; position--) {
+            final char[] letters = position % 2 == 0 ? c : v;
+
+            name[position] = letters[index % letters.length];
+            index /= letters.length;
+        }
+
+        return new String(name);
+    }
+}
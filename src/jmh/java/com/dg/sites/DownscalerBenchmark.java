@@ -0,0 +1,92 @@
+package com.dg.sites;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thumbnail sized downscale of a screenshot sized image, against the halving loop the upload path used before.
+ *
+ * @author doc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DownscalerBenchmark {
+    // JPEG decodes to 3BYTE_BGR, PNG with alpha to 4BYTE_ABGR
+    @Param({ "1920x1080", "3840x2160" })
+    public String resolution;
+
+    @Param({ "5", "6" })
+    public int imageType;
+
+    private BufferedImage source;
+    private int targetWidth;
+    private int targetHeight;
+
+    @Setup
+    public void setUp() {
+        final int width = BenchmarkCorpus.width(resolution);
+        final int height = BenchmarkCorpus.height(resolution);
+
+        source = BenchmarkCorpus.screenshot(width, height, imageType);
+
+        final float scale = Math.min(180 / (float) width, 124 / (float) height);
+        targetWidth = (int) (width * scale);
+        targetHeight = (int) (height * scale);
+    }
+
+    @Benchmark
+    public BufferedImage downscale() {
+        return Downscaler.downscale(source, targetWidth, targetHeight);
+    }
+
+    @Benchmark
+    public BufferedImage legacyResize() {
+        return legacyResize(source, targetWidth, targetHeight);
+    }
+
+    /**
+     * The resizeImage the upload pipeline used before the downscaler, kept here as the baseline.
+     */
+    static BufferedImage legacyResize(final BufferedImage image, final int targetWidth, final int targetHeight) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+
+        BufferedImage result;
+
+        while (true) {
+            if (w > targetWidth) {
+                w = w / 2;
+
+                if (w < targetWidth) {
+                    w = targetWidth;
+                }
+            }
+
+            if (h > targetHeight) {
+                h = h / 2;
+
+                if (h < targetHeight) {
+                    h = targetHeight;
+                }
+            }
+
+            result = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+
+            final Graphics2D graphics = result.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            graphics.drawImage(image, 0, 0, w, h, null);
+            graphics.dispose();
+
+            if (w == targetWidth) {
+                break;
+            }
+        }
+
+        return result;
+    }
+}
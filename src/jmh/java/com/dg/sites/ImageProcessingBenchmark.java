@@ -0,0 +1,48 @@
+package com.dg.sites;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CPU bound steps of an upload on a decoded screenshot: the thumbnail and both encodings an upload can end up in.
+ * Encodes stop at the 2 MB the pipeline allows, like an upload which does not fit does.
+ *
+ * @author doc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ImageProcessingBenchmark {
+    private static final int MAX_IMAGE_SIZE = 2 * 1024 * 1024;
+
+    @Param({ "1366x768", "1920x1080", "3840x2160" })
+    public String resolution;
+
+    private BufferedImage image;
+    private ImageCodecs codecs;
+
+    @Setup
+    public void setUp() {
+        // What JPEG and 24 bit PNG uploads decode to
+        image = BenchmarkCorpus.screenshot(BenchmarkCorpus.width(resolution), BenchmarkCorpus.height(resolution), BufferedImage.TYPE_3BYTE_BGR);
+        codecs = new ImageCodecs(0.75f, -1);
+    }
+
+    @Benchmark
+    public BufferedImage thumbnail() {
+        return UploadPipeline.generateThumbnail(image, image.getWidth(), image.getHeight(), "dg-pic.tk/kaqen");
+    }
+
+    @Benchmark
+    public byte[] encodePng() throws IOException {
+        return codecs.writePng(image, MAX_IMAGE_SIZE);
+    }
+
+    @Benchmark
+    public byte[] encodeJpeg() throws IOException {
+        return codecs.writeJpeg(image, MAX_IMAGE_SIZE);
+    }
+}
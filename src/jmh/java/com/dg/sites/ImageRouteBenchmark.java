@@ -0,0 +1,90 @@
+package com.dg.sites;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Routing an image request to its cached body, against the regex and path building the catch-all route did before.
+ * Run with -prof gc to see the allocation rate of both.
+ *
+ * @author doc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ImageRouteBenchmark {
+    private static final Pattern IMAGE_PATH_PATTERN = Pattern.compile("/(?<name>[b-df-hj-np-tv-z][aeiouy][b-df-hj-np-tv-z][aeiouy][b-df-hj-np-tv-z])(?<mini>\\.mini)?");
+
+    private static final int PATHS = 1024;
+
+    private final String[] paths = new String[PATHS];
+    private final ImageCache cache = new ImageCache("benchmark", 64 * 1024 * 1024, NameAllocator.TOTAL_NAMES);
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+
+        for (int i = 0; i < PATHS; i++) {
+            final String name = NameAllocator.decodeWord(randomName(random));
+
+            if (i % 8 == 0) {
+                paths[i] = "/" + name + ".jpg";
+            } else if (i % 2 == 0) {
+                paths[i] = "/" + name + ".mini";
+            } else {
+                paths[i] = "/" + name;
+            }
+
+            cache.put(NameAllocator.parseImagePath("/" + name) >>> 1, new ImageCache.Entry(new byte[1024], 0));
+        }
+    }
+
+    private static int randomName(final Random random) {
+        final char[] c = NameAllocator.CONSONANTS;
+        final char[] v = NameAllocator.VOWELS;
+
+        return NameAllocator.encode(c[random.nextInt(c.length)], v[random.nextInt(v.length)],
+                c[random.nextInt(c.length)], v[random.nextInt(v.length)], c[random.nextInt(c.length)]);
+    }
+
+    private String nextPath() {
+        return paths[next++ & (PATHS - 1)];
+    }
+
+    @Benchmark
+    public void router(final Blackhole blackhole) {
+        final int route = NameAllocator.parseImagePath(nextPath());
+
+        if (route == -1) {
+            return;
+        }
+
+        blackhole.consume((route & 1) != 0);
+        blackhole.consume(cache.get(route >>> 1));
+    }
+
+    @Benchmark
+    public void matcher(final Blackhole blackhole) {
+        final Matcher matcher = IMAGE_PATH_PATTERN.matcher(nextPath());
+
+        if (!matcher.matches()) {
+            return;
+        }
+
+        final String name = matcher.group("name");
+        final boolean isThumbnail = matcher.group("mini") != null;
+        final File file = isThumbnail ? Paths.get("scr", "mini", name + ".jpg").toFile() : Paths.get("scr", name + ".jpg").toFile();
+
+        blackhole.consume(isThumbnail ? "\"" + name + ".mini\"" : "\"" + name + "\"");
+        blackhole.consume(file);
+    }
+}
@@ -0,0 +1,135 @@
+package com.dg.sites;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Name allocation against an in-memory database where a tenth of all names is already published.
+ * The name space is finite, so allocations are measured in batches on a fresh allocator per iteration.
+ *
+ * @author doc
+ */
+public class NameAllocatorBenchmark {
+    private static final int BATCH = 100_000;
+
+    private static final AtomicInteger databases = new AtomicInteger();
+
+    abstract static class Database {
+        JDBCDataSource dataSource;
+        PublishedNames publishedNames;
+        Path tableFile;
+
+        void open() throws IOException, SQLException {
+            tableFile = Files.createTempDirectory("dgpic-names").resolve("names.table");
+
+            dataSource = new JDBCDataSource();
+            dataSource.setUrl("jdbc:hsqldb:mem:names" + databases.incrementAndGet());
+            dataSource.setUser("sa");
+            dataSource.setPassword("");
+
+            try (final Connection connection = dataSource.getConnection()) {
+                try (final Statement statement = connection.createStatement()) {
+                    statement.execute("CREATE TABLE SCREENS (NAME VARCHAR(5) PRIMARY KEY, UPLOADED TIMESTAMP, VIEWS INTEGER, OWNER VARCHAR(64), FREE BOOLEAN)");
+                }
+
+                final Random random = new Random(42);
+
+                try (final PreparedStatement insert = connection.prepareStatement("INSERT INTO SCREENS (NAME, FREE) VALUES (?, FALSE)")) {
+                    for (int index = 0; index < NameAllocator.TOTAL_NAMES; index++) {
+                        if (random.nextInt(10) == 0) {
+                            insert.setString(1, BenchmarkCorpus.name(index));
+                            insert.addBatch();
+                        }
+                    }
+
+                    insert.executeBatch();
+                }
+            }
+
+            publishedNames = new PublishedNames(dataSource);
+        }
+
+        void close() throws IOException, SQLException {
+            try (final Connection connection = dataSource.getConnection();
+                 final Statement statement = connection.createStatement()) {
+                statement.execute("SHUTDOWN");
+            }
+
+            Files.deleteIfExists(tableFile);
+            Files.deleteIfExists(tableFile.getParent());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class FreshAllocator extends Database {
+        NameAllocator allocator;
+
+        @Setup(Level.Iteration)
+        public void setUp() throws IOException, SQLException {
+            open();
+            allocator = new NameAllocator(tableFile, dataSource, publishedNames);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException, SQLException {
+            close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ExistingDatabase extends Database {
+        @Setup(Level.Trial)
+        public void setUp() throws IOException, SQLException {
+            open();
+            // Creates the table file, later allocators map it
+            new NameAllocator(tableFile, dataSource, publishedNames);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException, SQLException {
+            close();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(batchSize = BATCH)
+    @Measurement(batchSize = BATCH)
+    public String allocate(final FreshAllocator state) {
+        return state.allocator.allocate();
+    }
+
+    /**
+     * What a restart pays before the first name can be handed out.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public NameAllocator startup(final ExistingDatabase state) throws IOException, SQLException {
+        return new NameAllocator(state.tableFile, state.dataSource, state.publishedNames);
+    }
+
+    /**
+     * First start, or one after the table file was lost, which shuffles and writes the whole table.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public NameAllocator rebuild(final ExistingDatabase state) throws IOException, SQLException {
+        Files.delete(state.tableFile);
+
+        return new NameAllocator(state.tableFile, state.dataSource, state.publishedNames);
+    }
+}
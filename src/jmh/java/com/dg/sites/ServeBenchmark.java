@@ -0,0 +1,177 @@
+package com.dg.sites;
+
+import net.freeutils.httpserver.HTTPServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Requests per second against a local server running the site on a fixture directory with corpus images.
+ * With the caches disabled images go through serveFile and thumbnails through the packed store.
+ *
+ * @author doc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(4)
+public class ServeBenchmark {
+    private static final int IMAGES = 64;
+
+    @Param({ "static", "image", "thumbnail" })
+    public String route;
+
+    @Param({ "memory", "disk" })
+    public String cache;
+
+    private Path home;
+    private HTTPServer server;
+    private String[] urls;
+
+    @State(Scope.Thread)
+    public static class Client {
+        final byte[] buffer = new byte[64 * 1024];
+        int next;
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        home = Files.createTempDirectory("dgpic-serve-benchmark");
+
+        createDatabase();
+        createStaticFiles();
+        createImages();
+
+        System.setProperty("dgpic.metricsPort", "0");
+
+        if ("disk".equals(cache)) {
+            System.setProperty("dgpic.imageCacheSize", "0");
+            System.setProperty("dgpic.thumbnailCacheSize", "0");
+        }
+
+        final int port;
+
+        try (final ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        final ConnectionExecutor executor = ConnectionExecutor.bounded(64, 64);
+
+        server = new HTTPServer(port);
+        server.setExecutor(executor);
+
+        // Starts the server too
+        new SiteEngine(server, executor, Collections.singletonList(new SiteConfig("bench", home, Collections.emptyList())), "bench", null).ignite();
+
+        urls = new String[IMAGES];
+
+        for (int i = 0; i < IMAGES; i++) {
+            final String path;
+
+            if ("static".equals(route)) {
+                path = "/static/index.html";
+            } else if ("thumbnail".equals(route)) {
+                path = "/" + BenchmarkCorpus.name(i) + ".mini";
+            } else {
+                path = "/" + BenchmarkCorpus.name(i);
+            }
+
+            urls[i] = "http://127.0.0.1:" + port + path;
+        }
+    }
+
+    private void createDatabase() throws SQLException {
+        try (final Connection connection = DriverManager.getConnection("jdbc:hsqldb:" + home.resolve("database").resolve("db"), "sa", "");
+             final Statement statement = connection.createStatement()) {
+            for (final String table : new String[] { "USERS", "GALLERY_MEMBERS", "TOKENS", "CAPTCHAS" }) {
+                statement.execute("CREATE TABLE " + table + " (ID INTEGER)");
+            }
+
+            statement.execute("CREATE TABLE SCREENS (NAME VARCHAR(5) PRIMARY KEY, UPLOADED TIMESTAMP, VIEWS INTEGER, OWNER VARCHAR(64), FREE BOOLEAN)");
+            statement.execute("CREATE TABLE VIEWS (NAME VARCHAR(5) PRIMARY KEY, AMOUNT BIGINT)");
+            statement.execute("CREATE TABLE DOWNLOADS (NAME VARCHAR(5) PRIMARY KEY, AMOUNT BIGINT)");
+            statement.execute("CREATE TABLE VIEWS_BY_REFERER (REFERER VARCHAR(253) PRIMARY KEY, AMOUNT BIGINT)");
+
+            try (final PreparedStatement insert = connection.prepareStatement("INSERT INTO SCREENS (NAME, FREE) VALUES (?, FALSE)")) {
+                for (int i = 0; i < IMAGES; i++) {
+                    insert.setString(1, BenchmarkCorpus.name(i));
+                    insert.addBatch();
+                }
+
+                insert.executeBatch();
+            }
+
+            statement.execute("SHUTDOWN");
+        }
+    }
+
+    private void createStaticFiles() throws IOException {
+        final StringBuilder page = new StringBuilder("<!DOCTYPE html><html><head><title>dg-pic</title></head><body>");
+
+        for (int i = 0; i < 500; i++) {
+            page.append("<p>Paste a screenshot to upload it, line ").append(i).append("</p>");
+        }
+
+        final Path staticDirectory = Files.createDirectories(home.resolve("static"));
+
+        Files.write(staticDirectory.resolve("index.html"), page.append("</body></html>").toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void createImages() throws IOException {
+        final ImageStore imageStore = new ImageStore(home.resolve("scr"));
+
+        // Same image under every name, the corpus sizes differ in encoding time, not in serving time
+        final byte[] image = BenchmarkCorpus.encoded("1920x1080", "jpg");
+        final byte[] thumbnail = BenchmarkCorpus.encoded("180x140", "png");
+
+        for (int i = 0; i < IMAGES; i++) {
+            imageStore.writeImage(BenchmarkCorpus.name(i), image);
+            imageStore.writeThumbnail(BenchmarkCorpus.name(i), thumbnail);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.stop();
+
+        try (final Stream<Path> files = Files.walk(home)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long get(final Client client) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(urls[client.next++ % IMAGES]).openConnection();
+
+        if (connection.getResponseCode() != 200) {
+            throw new IllegalStateException(connection.getURL() + " answered " + connection.getResponseCode());
+        }
+
+        long length = 0;
+
+        // Read to the end, so the connection is kept alive for the next request
+        try (final InputStream body = connection.getInputStream()) {
+            for (int read; (read = body.read(client.buffer)) != -1; ) {
+                length += read;
+            }
+        }
+
+        return length;
+    }
+}
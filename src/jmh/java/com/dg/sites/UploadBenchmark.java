@@ -0,0 +1,83 @@
+package com.dg.sites;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.spi.ImageReaderSpi;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Whole upload processing of each corpus screenshot, from spooling the request body to the persister being called.
+ * Depending on format and size that is the stored as is, PNG or JPEG branch. Persisting is a no-op here.
+ *
+ * @author doc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class UploadBenchmark {
+    @Param({ "1366x768", "1920x1080", "3840x2160" })
+    public String resolution;
+
+    @Param({ "png", "jpg", "bmp", "gif" })
+    public String format;
+
+    private Path directory;
+    private UploadPipeline pipeline;
+    private byte[] upload;
+
+    private int uploads;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("dgpic-upload-benchmark");
+        upload = BenchmarkCorpus.encoded(resolution, format);
+
+        pipeline = new UploadPipeline(directory, Long.MAX_VALUE, Runtime.getRuntime().maxMemory() / 2, "dg-pic.tk", new UploadPipeline.Persister() {
+            @Override
+            public CompletionStage<Void> persist(final String name, final byte[] imageData, final byte[] thumbnailData) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            @Override
+            public CompletionStage<Void> persistOriginal(final String name, final Path original, final byte[] thumbnailData) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            @Override
+            public void discard(final String name) {
+            }
+        }, new Metrics());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (final Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void upload() throws Exception {
+        final String name = BenchmarkCorpus.name(uploads++ % NameAllocator.TOTAL_NAMES);
+
+        final Path spooled = pipeline.spool(new ByteArrayInputStream(upload), ContentIndex.newDigest());
+        pipeline.sync(spooled);
+        final ImageReaderSpi reader = pipeline.detectFormat(spooled);
+        final int admittedKilobytes = pipeline.admit(spooled, reader, 0);
+
+        pipeline.reserve(name);
+
+        final CompletableFuture<Void> processing = pipeline.processing(name);
+
+        pipeline.submit(name, spooled, reader, admittedKilobytes);
+        processing.get();
+    }
+}
@@ -1,6 +1,8 @@
 package com.dg;
 
-import com.dg.sites.DgPic;
+import com.dg.sites.ConnectionExecutor;
+import com.dg.sites.SiteConfig;
+import com.dg.sites.SiteEngine;
 import net.freeutils.httpserver.HTTPServer;
 import org.pmw.tinylog.Configurator;
 import org.pmw.tinylog.Level;
@@ -12,11 +14,27 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
 
 /**
+ * Arguments, in any order: the port, "local" to serve every host, and a sites file as described in
+ * {@link SiteConfig}, which may also set the port, the default site for unknown hosts and a shared database:
+ *
+ * <pre>
+ * port = 8080
+ * default = dgpic
+ * database = /srv/sites/db
+ * </pre>
+ *
+ * Without a sites file the only site is dg-pic.tk in dgpic.home.
+ *
  * @author doc
  */
 public class Server {
@@ -36,35 +54,94 @@ public class Server {
 
         log.info("Starting up");
 
-        int port = 80;
+        Integer portArgument = null;
         boolean isLocal = false;
+        Path sitesFile = null;
 
         for (String arg : args) {
-            if (arg.matches("\\d{1,4}")) {
-                port = Integer.valueOf(arg);
+            if (arg.matches("\\d+")) {
+                portArgument = parsePort(arg);
+
+                if (portArgument == null) {
+                    log.error("Invalid port: {}", arg);
+                    return;
+                }
             } else if ("local".equals(arg)) {
                 isLocal = true;
+            } else {
+                sitesFile = Paths.get(arg);
+            }
+        }
+
+        final Properties properties = new Properties();
+
+        if (sitesFile != null) {
+            try (Reader reader = Files.newBufferedReader(sitesFile, StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            } catch (final IOException e) {
+                log.error("Unable to read sites from {}", sitesFile, e);
+                return;
+            }
+        }
+
+        final Integer port = portArgument != null ? portArgument : parsePort(properties.getProperty("port", "80").trim());
+
+        if (port == null) {
+            log.error("Invalid port in {}: {}", sitesFile, properties.getProperty("port"));
+            return;
+        }
+
+        final List<SiteConfig> sites;
+        String defaultSite;
+
+        if (sitesFile != null) {
+            try {
+                sites = SiteConfig.load(properties);
+            } catch (final IllegalArgumentException e) {
+                log.error("Invalid sites in {}: {}", sitesFile, e.getMessage());
+                return;
+            }
+
+            defaultSite = properties.getProperty("default");
+
+            if (defaultSite == null && isLocal) {
+                defaultSite = sites.get(0).getName();
             }
+        } else {
+            // The original single site, local requests come with any host
+            final Path home = Paths.get(System.getProperty("dgpic.home", ""));
+
+            sites = Collections.singletonList(new SiteConfig("dgpic", home, Collections.singletonList("dg-pic.tk")));
+            defaultSite = isLocal ? "dgpic" : null;
         }
 
+        final String sharedDatabase = properties.getProperty("database");
+
         final HTTPServer server = new HTTPServer(port);
-        server.setExecutor(new ThreadPoolExecutor(8, Integer.MAX_VALUE, 300, TimeUnit.SECONDS, new SynchronousQueue<>()));
+        final ConnectionExecutor executor = ConnectionExecutor.fromSystemProperties();
+        server.setExecutor(executor);
+        server.setServerSocketFactory(executor.getServerSocketFactory());
+
+        // Also how long an idle kept-alive connection holds on to its thread
+        server.setSocketTimeout(Integer.getInteger("dgpic.socketTimeoutSeconds", 10) * 1000);
 
         try {
-            server.start();
+            new SiteEngine(server, executor, sites, defaultSite, sharedDatabase != null ? Paths.get(sharedDatabase.trim()) : null).ignite();
         } catch (final IOException e) {
             log.error("Error when starting server", e);
-            return;
         }
+    }
 
-        // TODO handle other hosts
-        if (isLocal) {
-            DgPic.ignite(server.getVirtualHost(null));
-        } else {
-            final HTTPServer.VirtualHost host = new HTTPServer.VirtualHost("dg-pic.tk");
-            server.addVirtualHost(host);
+    /**
+     * @return null unless the port is one a server can listen on
+     */
+    private static Integer parsePort(final String value) {
+        try {
+            final int port = Integer.parseInt(value);
 
-            DgPic.ignite(host);
+            return port >= 1 && port <= 65535 ? port : null;
+        } catch (final NumberFormatException e) {
+            return null;
         }
     }
 }
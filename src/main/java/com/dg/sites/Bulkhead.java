@@ -0,0 +1,58 @@
+package com.dg.sites;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps how many connection threads one kind of work can hold at once, so that slow image reads can't take every
+ * thread from uploads and the other way around. A request waits a little for its turn and is turned away with a
+ * 503 after that.
+ *
+ * @author doc
+ */
+class Bulkhead {
+    private final String name;
+    private final int limit;
+    private final long maxWaitMillis;
+    private final Semaphore permits;
+
+    Bulkhead(final String name, final int limit, final long maxWaitMillis) {
+        this.name = name;
+        this.limit = limit;
+        this.maxWaitMillis = maxWaitMillis;
+        this.permits = new Semaphore(limit);
+    }
+
+    /**
+     * Every successful call has to be followed by {@link #release()}.
+     *
+     * @throws DgPic.OverloadedException when no permit came free in time
+     */
+    void acquire() {
+        try {
+            if (!permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new DgPic.OverloadedException("Too many " + name + " requests", 1);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new DgPic.OverloadedException("Interrupted while waiting for " + name, 1);
+        }
+    }
+
+    void release() {
+        permits.release();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    int getInUse() {
+        return limit - permits.availablePermits();
+    }
+}
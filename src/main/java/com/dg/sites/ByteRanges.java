@@ -0,0 +1,98 @@
+package com.dg.sites;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parser for the Range request header, RFC 7233.
+ *
+ * @author doc
+ */
+class ByteRanges {
+    // More ranges than that are not worth the multipart overhead, the whole body is sent instead
+    private static final int MAX_RANGES = 16;
+
+    private ByteRanges() {
+    }
+
+    /**
+     * @return list of inclusive {first, last} pairs, an empty list if none of the ranges can be satisfied
+     * or null if the header should be ignored and the full body sent
+     */
+    static List<long[]> parse(final String header, final long length) {
+        if (header == null || !header.startsWith("bytes=")) {
+            return null;
+        }
+
+        final String[] specs = header.substring("bytes=".length()).split(",");
+
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        final List<long[]> ranges = new ArrayList<>(specs.length);
+
+        for (final String rawSpec : specs) {
+            final String spec = rawSpec.trim();
+            final int dash = spec.indexOf('-');
+
+            if (dash == -1) {
+                return null;
+            }
+
+            final long first;
+            final long last;
+
+            try {
+                if (dash == 0) {
+                    // Suffix range, last N bytes
+                    final long suffixLength = parsePosition(spec.substring(1));
+
+                    if (suffixLength <= 0) {
+                        continue;
+                    }
+
+                    first = Math.max(0, length - suffixLength);
+                    last = length - 1;
+                } else {
+                    first = parsePosition(spec.substring(0, dash));
+
+                    if (dash == spec.length() - 1) {
+                        last = length - 1;
+                    } else {
+                        final long requestedLast = parsePosition(spec.substring(dash + 1));
+
+                        if (requestedLast < first) {
+                            return null;
+                        }
+
+                        last = Math.min(requestedLast, length - 1);
+                    }
+                }
+            } catch (final NumberFormatException e) {
+                return null;
+            }
+
+            if (first < 0) {
+                return null;
+            }
+
+            if (first < length) {
+                ranges.add(new long[] { first, last });
+            }
+        }
+
+        return ranges;
+    }
+
+    /**
+     * Digits only, the sign which {@link Long#parseLong(String)} would accept makes the spec invalid.
+     */
+    private static long parsePosition(final String digits) {
+        if (digits.isEmpty() || digits.charAt(0) < '0' || digits.charAt(0) > '9') {
+            throw new NumberFormatException("Not a byte position: " + digits);
+        }
+
+        return Long.parseLong(digits);
+    }
+}
@@ -0,0 +1,224 @@
+package com.dg.sites;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ServerSocketFactory;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs jlhttp connections, which take a thread each for as long as they are kept alive. Either a bounded pool of
+ * platform threads with a queue in front of it, or a virtual thread per connection on JDK 21 and later.
+ *
+ * Connections past the limit are answered with a 503 right after they are accepted. jlhttp can't be handed a task
+ * it must not run, its accept thread dies on a rejected one, so the limit is applied by its server sockets.
+ *
+ * @author doc
+ */
+public class ConnectionExecutor implements Executor {
+    private static Logger log = LoggerFactory.getLogger(ConnectionExecutor.class);
+
+    private static final byte[] OVERLOADED_RESPONSE = ("HTTP/1.1 503 Service Unavailable\r\n" +
+            "Retry-After: 1\r\n" +
+            "Content-Length: 0\r\n" +
+            "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private final String mode;
+    private final ExecutorService delegate;
+    private final int maxConnections;
+
+    // Null for virtual threads
+    private final ThreadPoolExecutor pool;
+
+    // Running and queued
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+
+    private ConnectionExecutor(final String mode, final ExecutorService delegate, final int maxConnections, final ThreadPoolExecutor pool) {
+        this.mode = mode;
+        this.delegate = delegate;
+        this.maxConnections = maxConnections;
+        this.pool = pool;
+
+        log.info("Serving up to {} connections on {} threads", maxConnections, mode);
+    }
+
+    /**
+     * Configured by dgpic.executor, bounded or virtual, falls back to bounded where virtual threads are missing.
+     */
+    public static ConnectionExecutor fromSystemProperties() {
+        if ("virtual".equals(System.getProperty("dgpic.executor", "bounded"))) {
+            try {
+                return virtual(Integer.getInteger("dgpic.maxConnections", 10_000));
+            } catch (final UnsupportedOperationException e) {
+                log.warn("{}, using a bounded pool instead", e.getMessage());
+            }
+        }
+
+        return bounded(Integer.getInteger("dgpic.connectionThreads", 200), Integer.getInteger("dgpic.connectionQueue", 100));
+    }
+
+    /**
+     * @param queueSize connections which wait for a thread before new ones are turned away
+     */
+    public static ConnectionExecutor bounded(final int threads, final int queueSize) {
+        final AtomicInteger counter = new AtomicInteger();
+
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(queueSize),
+                runnable -> new Thread(runnable, "HTTP connection " + counter.incrementAndGet()));
+
+        // Threads are only kept around while there are connections for them
+        pool.allowCoreThreadTimeOut(true);
+
+        return new ConnectionExecutor("platform", pool, threads + queueSize, pool);
+    }
+
+    /**
+     * @throws UnsupportedOperationException before JDK 21
+     */
+    public static ConnectionExecutor virtual(final int maxConnections) {
+        final ExecutorService executor;
+
+        try {
+            // Compiled for Java 8, so the factory is looked up at runtime
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (final NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Virtual threads need JDK 21 or later");
+        } catch (final InvocationTargetException e) {
+            // Preview releases without --enable-preview
+            throw new UnsupportedOperationException("Virtual threads are unavailable: " + e.getCause().getMessage());
+        } catch (final IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return new ConnectionExecutor("virtual", executor, maxConnections, null);
+    }
+
+    @Override
+    public void execute(final Runnable connection) {
+        connections.incrementAndGet();
+
+        try {
+            delegate.execute(() -> {
+                try {
+                    connection.run();
+                } finally {
+                    connections.decrementAndGet();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            connections.decrementAndGet();
+
+            throw e;
+        }
+    }
+
+    /**
+     * Sockets created by this factory turn connections away while the executor is full, so they have to be the
+     * only ones feeding it.
+     */
+    public ServerSocketFactory getServerSocketFactory() {
+        return new ServerSocketFactory() {
+            @Override
+            public ServerSocket createServerSocket() throws IOException {
+                return new LimitedServerSocket();
+            }
+
+            @Override
+            public ServerSocket createServerSocket(final int port) throws IOException {
+                return bind(new LimitedServerSocket(), new InetSocketAddress(port), 50);
+            }
+
+            @Override
+            public ServerSocket createServerSocket(final int port, final int backlog) throws IOException {
+                return bind(new LimitedServerSocket(), new InetSocketAddress(port), backlog);
+            }
+
+            @Override
+            public ServerSocket createServerSocket(final int port, final int backlog, final InetAddress address) throws IOException {
+                return bind(new LimitedServerSocket(), new InetSocketAddress(address, port), backlog);
+            }
+        };
+    }
+
+    private static ServerSocket bind(final ServerSocket socket, final InetSocketAddress address, final int backlog) throws IOException {
+        socket.bind(address, backlog);
+
+        return socket;
+    }
+
+    private class LimitedServerSocket extends ServerSocket {
+        private LimitedServerSocket() throws IOException {
+            super();
+        }
+
+        @Override
+        public Socket accept() throws IOException {
+            while (true) {
+                final Socket socket = super.accept();
+
+                // Only the accept thread adds connections, so there is still room when the task is handed over
+                if (connections.get() < maxConnections) {
+                    return socket;
+                }
+
+                reject(socket);
+            }
+        }
+    }
+
+    /**
+     * The response fits into the empty send buffer of a new socket, so this never blocks the accept thread.
+     */
+    private void reject(final Socket socket) {
+        rejected.increment();
+
+        try (final Socket rejectedSocket = socket) {
+            final OutputStream out = rejectedSocket.getOutputStream();
+
+            out.write(OVERLOADED_RESPONSE);
+            out.flush();
+        } catch (final IOException e) {
+            // The client is gone already
+        }
+    }
+
+    String getMode() {
+        return mode;
+    }
+
+    int getMaxConnections() {
+        return maxConnections;
+    }
+
+    int getConnections() {
+        return connections.get();
+    }
+
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return null for virtual threads
+     */
+    ThreadPoolExecutor getPool() {
+        return pool;
+    }
+}
@@ -0,0 +1,157 @@
+package com.dg.sites;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps SHA-256 of uploaded bytes to the name the upload was stored under, so the same file uploaded again gets
+ * the existing name. Loaded into memory at startup, written through to the CONTENT_HASHES table.
+ *
+ * @author doc
+ */
+class ContentIndex {
+    private static Logger log = LoggerFactory.getLogger(ContentIndex.class);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * SHA-256 as four longs, a fraction of the memory of its hex form for every name of a site.
+     */
+    private static final class Hash {
+        private final long first;
+        private final long second;
+        private final long third;
+        private final long fourth;
+
+        private Hash(final byte[] digest) {
+            final ByteBuffer buffer = ByteBuffer.wrap(digest);
+
+            first = buffer.getLong();
+            second = buffer.getLong();
+            third = buffer.getLong();
+            fourth = buffer.getLong();
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof Hash)) {
+                return false;
+            }
+
+            final Hash hash = (Hash) other;
+
+            return first == hash.first && second == hash.second && third == hash.third && fourth == hash.fourth;
+        }
+
+        @Override
+        public int hashCode() {
+            // Already uniformly distributed
+            return (int) first;
+        }
+    }
+
+    private final DataSource database;
+    private final Map<Hash, String> names = new ConcurrentHashMap<>();
+
+    ContentIndex(final DataSource database) throws SQLException {
+        this.database = database;
+
+        try (final Connection connection = database.getConnection()) {
+            try (final Statement statement = connection.createStatement()) {
+                statement.execute("CREATE CACHED TABLE IF NOT EXISTS CONTENT_HASHES (HASH CHAR(64) PRIMARY KEY, NAME VARCHAR(5) NOT NULL)");
+            }
+
+            try (final ResultSet result = connection.createStatement().executeQuery("SELECT HASH, NAME FROM CONTENT_HASHES")) {
+                while (result.next()) {
+                    names.put(new Hash(fromHex(result.getString("HASH"))), result.getString("NAME"));
+                }
+            }
+        }
+
+        log.info("Content index has {} hashes", names.size());
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            // Every JRE is required to have it
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(final byte[] digest) {
+        final char[] hex = new char[digest.length * 2];
+
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+        }
+
+        return new String(hex);
+    }
+
+    static byte[] fromHex(final String hex) {
+        final byte[] digest = new byte[hex.length() / 2];
+
+        for (int i = 0; i < digest.length; i++) {
+            digest[i] = (byte) (Character.digit(hex.charAt(i * 2), 16) << 4 | Character.digit(hex.charAt(i * 2 + 1), 16));
+        }
+
+        return digest;
+    }
+
+    /**
+     * @return name of an image with the same contents or null
+     */
+    String find(final byte[] digest) {
+        return names.get(new Hash(digest));
+    }
+
+    void add(final byte[] digest, final String name) {
+        if (names.putIfAbsent(new Hash(digest), name) != null) {
+            // Identical uploads which were processed at the same time, the first one stays
+            return;
+        }
+
+        try (final Connection connection = database.getConnection();
+             final PreparedStatement insert = connection.prepareStatement("INSERT INTO CONTENT_HASHES VALUES (?, ?)")) {
+            insert.setString(1, toHex(digest));
+            insert.setString(2, name);
+            insert.execute();
+        } catch (final SQLException e) {
+            log.error("Unable to store content hash of {}", name, e);
+        }
+    }
+
+    /**
+     * Forgets an image which is no longer available.
+     */
+    void remove(final byte[] digest) {
+        if (names.remove(new Hash(digest)) == null) {
+            return;
+        }
+
+        final String hash = toHex(digest);
+
+        try (final Connection connection = database.getConnection();
+             final PreparedStatement delete = connection.prepareStatement("DELETE FROM CONTENT_HASHES WHERE HASH = ?")) {
+            delete.setString(1, hash);
+            delete.execute();
+        } catch (final SQLException e) {
+            log.error("Unable to remove content hash {}", hash, e);
+        }
+    }
+}
@@ -1,38 +1,46 @@
 package com.dg.sites;
 
-import com.sun.imageio.plugins.bmp.BMPImageReaderSpi;
-import com.sun.imageio.plugins.gif.GIFImageReaderSpi;
-import com.sun.imageio.plugins.jpeg.JPEGImageReaderSpi;
-import com.sun.imageio.plugins.png.PNGImageReaderSpi;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 import net.freeutils.httpserver.HTTPServer;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.imageio.ImageIO;
-import javax.imageio.ImageReadParam;
-import javax.imageio.ImageReader;
-import javax.imageio.spi.IIORegistry;
 import javax.imageio.spi.ImageReaderSpi;
-import javax.imageio.stream.MemoryCacheImageInputStream;
 import javax.sql.DataSource;
-import java.awt.Color;
-import java.awt.Font;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
-import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.sql.*;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 import static net.freeutils.httpserver.HTTPServer.MultipartIterator.Part;
 import static org.apache.commons.io.FileUtils.byteCountToDisplaySize;
@@ -43,90 +51,542 @@ import static org.apache.commons.io.FileUtils.byteCountToDisplaySize;
 public class DgPic {
     private static Logger log = LoggerFactory.getLogger(DgPic.class);
 
-    private final int[] allPossibleNamesEncoded;
-    private int nameCursor = 0;
+    private final SiteEngine engine;
+    private final SiteConfig site;
+
+    // Holds the database, static and scr directories
+    private final Path home;
 
     private final DataSource database;
 
-    private final Pattern imagePathPattern = Pattern.compile("/(?<name>[b-df-hj-np-tv-z][aeiouy][b-df-hj-np-tv-z][aeiouy][b-df-hj-np-tv-z])(?<mini>\\.mini)?");
+    private final PublishedNames publishedNames;
+
+    private final NameAllocator nameAllocator;
+
+    private final ScreensWriter screensWriter;
+
+    private final ViewCounters viewCounters;
+
+    private final ContentIndex contentIndex;
+
+    private final ImageStore imageStore;
+
+    // Placeholder served for names without an image
+    private final byte[] noneImage;
+
+    private final Path staticDirectory;
+
+    // Keyed by the request path without its slash, static/index.html, kept up to date by a watcher
+    private final Map<String, Path> staticPaths = new ConcurrentHashMap<>();
+
+    // Loaded on first request and replaced as a whole when the file changes, so readers never wait
+    private final Map<String, StaticFile> staticFiles = new ConcurrentHashMap<>();
+
+    private final UploadPipeline uploadPipeline;
+
+    // Shared by all sites, keys of this one start at cacheKeyBase
+    private final ImageCache imageCache;
+    private final ImageCache thumbnailCache;
+    private final int cacheKeyBase;
+
+    // Indexed by the route parseImagePath returns, so serving a known image builds no strings
+    private final AtomicReferenceArray<ImageRoute> imageRoutes = new AtomicReferenceArray<>(NameAllocator.TOTAL_NAMES * 2);
 
-    private final Map<String, StaticFile> staticFiles;
+    // Labeled with the site
+    private final Metrics metrics;
+
+    private final Bulkhead imageBulkhead;
+    private final Bulkhead uploadBulkhead;
+
+    // Completed once every field is set, handlers are registered before that
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+
+    private final LongAdder bytesServed;
+
+    private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "DgPic maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Image names are never reused, so an image never changes once uploaded
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+    // Content codings we can serve, in order of preference
+    private static final String[] STATIC_ENCODINGS = { "br", "gzip" };
 
     private static class StaticFile {
         private String contentType;
+        private String contentEncoding;
+        private Path path;
         private byte[] cachedContents;
+        private ByteBuffer mappedContents;
+        private CacheMetadata cacheMetadata;
+        private Map<String, StaticFile> encodedVariants = new HashMap<>();
 
-        private StaticFile(String contentType, byte[] cachedContents) {
+        private StaticFile(String contentType, String contentEncoding, Path path, byte[] cachedContents, ByteBuffer mappedContents, CacheMetadata cacheMetadata) {
             this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.path = path;
             this.cachedContents = cachedContents;
+            this.mappedContents = mappedContents;
+            this.cacheMetadata = cacheMetadata;
         }
 
         String getContentType() {
             return contentType;
         }
 
+        /**
+         * @return null for the identity encoding
+         */
+        String getContentEncoding() {
+            return contentEncoding;
+        }
+
+        Path getPath() {
+            return path;
+        }
+
         byte[] getCachedContents() {
             return cachedContents;
         }
+
+        /**
+         * @return read-only mapping of a file too large to be cached, null if it is cached or served from disk
+         */
+        ByteBuffer getMappedContents() {
+            return mappedContents;
+        }
+
+        CacheMetadata getCacheMetadata() {
+            return cacheMetadata;
+        }
+
+        StaticFile getEncodedVariant(final String encoding) {
+            return encodedVariants.get(encoding);
+        }
+
+        boolean hasEncodedVariants() {
+            return !encodedVariants.isEmpty();
+        }
+    }
+
+    private static class CacheMetadata {
+        private final String etag;
+        private final long lastModified;
+        private final String cacheControl;
+
+        private CacheMetadata(final String etag, final long lastModified, final String cacheControl) {
+            this.etag = etag;
+            // HTTP dates have a resolution of one second
+            this.lastModified = lastModified / 1000 * 1000;
+            this.cacheControl = cacheControl;
+        }
+
+        String getEtag() {
+            return etag;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        String getCacheControl() {
+            return cacheControl;
+        }
     }
 
-    private static class InvalidInputException extends RuntimeException {
+    /**
+     * Strings and cache metadata of an image path, made the first time the path is served and kept from then on.
+     */
+    private static class ImageRoute {
+        private final String name;
+
+        // Answers revalidations, which don't need the modification time
+        private final CacheMetadata revalidated;
+
+        // Last metadata served with a body, replaced when the image comes with another modification time
+        private volatile CacheMetadata served;
+
+        private ImageRoute(final String name, final String etag) {
+            this.name = name;
+            this.revalidated = new CacheMetadata(etag, 0, IMMUTABLE);
+        }
+
+        String getName() {
+            return name;
+        }
+
+        CacheMetadata getRevalidated() {
+            return revalidated;
+        }
+
+        CacheMetadata getServed(final long lastModified) {
+            final CacheMetadata current = served;
+
+            if (current != null && current.getLastModified() == lastModified / 1000 * 1000) {
+                return current;
+            }
+
+            final CacheMetadata cacheMetadata = new CacheMetadata(revalidated.getEtag(), lastModified, IMMUTABLE);
+            served = cacheMetadata;
+
+            return cacheMetadata;
+        }
+    }
+
+    static class InvalidInputException extends RuntimeException {
         InvalidInputException(final String message) {
             super(message);
         }
     }
 
-    private DgPic(final HTTPServer.VirtualHost host) {
-        log.info("Igniting");
+    static class OverloadedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
 
-        allPossibleNamesEncoded = generateAllPossibleFileNames();
-        System.gc();
+        private final int retryAfterSeconds;
 
-        log.info("Generated all {} names, connecting to db...", allPossibleNamesEncoded.length);
+        OverloadedException(final String message, final int retryAfterSeconds) {
+            super(message);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        int getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
 
+    /**
+     * Returns once the site is ready.
+     *
+     * @param siteIndex position of the site in the engine, for its routes and cache keys
+     * @param routed called as soon as the routes are registered, so the server can accept requests while the rest
+     *               of the site starts up
+     */
+    DgPic(final SiteEngine engine, final SiteConfig site, final int siteIndex, final Runnable routed) {
+        final long igniteStart = System.nanoTime();
+
+        this.engine = engine;
+        this.site = site;
+        home = site.getHome();
+        staticDirectory = home.resolve("static");
+        imageCache = engine.getImageCache();
+        thumbnailCache = engine.getThumbnailCache();
+        cacheKeyBase = siteIndex * NameAllocator.TOTAL_NAMES;
+        metrics = engine.getMetrics().withLabels("site", site.getName());
+        imageBulkhead = engine.getImageBulkhead();
+        uploadBulkhead = engine.getUploadBulkhead();
+        bytesServed = metrics.counter("dgpic_http_response_bytes_total", "Response body bytes written.");
+
+        log.info("Igniting {} from {}", site.getName(), home.toAbsolutePath());
+
+        // Requests which come in from now on wait at the readiness gate instead of getting 404s
+        start(siteIndex);
+        routed.run();
+
+        // Whatever fails from here on, requests which wait at the gate get their 503 instead of timing out
         try {
-            final HikariConfig hikariConfig = new HikariConfig();
-            hikariConfig.setDriverClassName("org.hsqldb.jdbc.JDBCDriver");
-            hikariConfig.setJdbcUrl("jdbc:hsqldb:database/db");
-            hikariConfig.setUsername("sa");
-            hikariConfig.setPassword("");
-            hikariConfig.setMaximumPoolSize(4);
-
-            database = new HikariDataSource(hikariConfig);
-
-            try (final Connection connection = database.getConnection()) {
-                for (final String table: new String[] { "VIEWS", "USERS", "GALLERY_MEMBERS", "TOKENS", "DOWNLOADS", "CAPTCHAS", "VIEWS_BY_REFERER" }) {
-                    setTableCached(connection, table);
+            final ExecutorService startup = Executors.newFixedThreadPool(4, runnable -> {
+                final Thread thread = new Thread(runnable, "DgPic startup");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            try {
+                final CompletableFuture<DataSource> databasePhase = phase("database", startup, this::openDatabase);
+                final CompletableFuture<ViewCounters> viewCountersPhase = databasePhase.thenCompose(db -> phase("view counters", startup, () -> new ViewCounters(db)));
+                // Needs the counter tables, which the view counters create if they are missing
+                final CompletableFuture<Void> cachedTablesPhase = viewCountersPhase.thenCompose(counters -> phase("cached tables", startup, () -> setTablesCached(databasePhase.join())));
+                final CompletableFuture<PublishedNames> publishedNamesPhase = databasePhase.thenCompose(db -> phase("published names", startup, () -> new PublishedNames(db)));
+                final CompletableFuture<NameAllocator> nameAllocatorPhase = publishedNamesPhase.thenCompose(published -> phase("name table", startup,
+                        () -> new NameAllocator(home.resolve("database").resolve("names.table"), databasePhase.join(), published)));
+                final CompletableFuture<ContentIndex> contentIndexPhase = databasePhase.thenCompose(db -> phase("content index", startup, () -> new ContentIndex(db)));
+                final CompletableFuture<Void> staticFilesPhase = phase("static files", startup, this::watchStaticFiles);
+                final CompletableFuture<ImageStore> imageStorePhase = phase("image store", startup, () -> new ImageStore(home.resolve("scr")));
+
+                database = databasePhase.join();
+                viewCounters = viewCountersPhase.join();
+                cachedTablesPhase.join();
+                publishedNames = publishedNamesPhase.join();
+                nameAllocator = nameAllocatorPhase.join();
+                contentIndex = contentIndexPhase.join();
+                staticFilesPhase.join();
+                imageStore = imageStorePhase.join();
+            } catch (final CompletionException e) {
+                throw new RuntimeException(e.getCause());
+            } finally {
+                startup.shutdown();
+            }
+
+            screensWriter = new ScreensWriter(database, UploadPipeline.stageHistogram(metrics, "db_update"));
+            noneImage = loadNoneImage(home.resolve("scr").resolve("none.jpg"));
+
+            final long uploadMemoryBudget = Long.getLong("dgpic.uploadMemoryBudget", Runtime.getRuntime().maxMemory() / 4);
+
+            uploadPipeline = new UploadPipeline(home.resolve("scr").resolve("incoming"), Long.getLong("dgpic.maxUploadSize", 32 * 1024 * 1024), uploadMemoryBudget, site.getPrimaryHost(), new UploadPipeline.Persister() {
+                @Override
+                public CompletionStage<Void> persist(final String name, final byte[] imageData, final byte[] thumbnailData) throws Exception {
+                    imageStore.writeThumbnail(name, thumbnailData);
+                    imageStore.writeImage(name, imageData);
+
+                    return saveNewImage(name, imageData.length);
+                }
+
+                @Override
+                public CompletionStage<Void> persistOriginal(final String name, final Path original, final byte[] thumbnailData) throws Exception {
+                    final long imageSize = Files.size(original);
+
+                    imageStore.writeThumbnail(name, thumbnailData);
+                    imageStore.linkImage(name, original);
+
+                    return saveNewImage(name, imageSize);
+                }
+
+                @Override
+                public void discard(final String name) {
+                    // The client already has the name, so it is never reused and keeps showing none
+                    try {
+                        imageStore.deleteImage(name);
+                        imageStore.deleteThumbnail(name);
+                    } catch (final IOException e) {
+                        log.error("Unable to delete files of discarded upload {}", name, e);
+                    }
                 }
+            }, metrics);
+
+            uploadPipeline.recover();
+
+            final long statsFlushSeconds = Long.getLong("dgpic.statsFlushSeconds", 5);
+
+            maintenance.scheduleWithFixedDelay(viewCounters::flush, statsFlushSeconds, statsFlushSeconds, TimeUnit.SECONDS);
+
+            ready.complete(null);
+        } catch (final Throwable e) {
+            log.error("Startup of {} failed", site.getName(), e);
+
+            ready.completeExceptionally(e);
+
+            throw e;
+        }
+
+        log.info("{} ready after {} ms", site.getName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - igniteStart));
+    }
+
+    private interface StartupStep<T> {
+        T run() throws Exception;
+    }
+
+    private <T> CompletableFuture<T> phase(final String name, final Executor executor, final StartupStep<T> step) {
+        return CompletableFuture.supplyAsync(() -> {
+            final long start = System.nanoTime();
+
+            try {
+                final T result = step.run();
+
+                log.info("Startup phase '{}' of {} took {} ms", name, site.getName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+                return result;
+            } catch (final Exception e) {
+                throw new CompletionException("Startup phase '" + name + "' failed", e);
             }
-        } catch (final Exception e) {
-            log.error("Error while connecting to the database", e);
-            throw new RuntimeException(e);
+        }, executor);
+    }
+
+    private DataSource openDatabase() throws SQLException {
+        if (engine.getSharedDatabase() != null) {
+            return new SchemaDataSource(engine.getSharedDatabase(), site.getName());
         }
 
-        log.info("Connection established");
+        final HikariDataSource pool = openPool(home.resolve("database").resolve("db"), 4);
+
+        registerPoolMetrics(metrics, pool);
+
+        return pool;
+    }
+
+    static HikariDataSource openPool(final Path database, final int size) {
+        final HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setDriverClassName("org.hsqldb.jdbc.JDBCDriver");
+        hikariConfig.setJdbcUrl("jdbc:hsqldb:" + database);
+        hikariConfig.setUsername("sa");
+        hikariConfig.setPassword("");
+        hikariConfig.setMaximumPoolSize(size);
 
-        log.info("Enumerating static files");
+        return new HikariDataSource(hikariConfig);
+    }
 
-        staticFiles = new HashMap<>();
+    private static Void setTablesCached(final DataSource database) throws SQLException {
+        try (final Connection connection = database.getConnection()) {
+            for (final String table: new String[] { "VIEWS", "USERS", "GALLERY_MEMBERS", "TOKENS", "DOWNLOADS", "CAPTCHAS", "VIEWS_BY_REFERER" }) {
+                setTableCached(connection, table);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Only finds the files, each one is read on its first request. Watching starts before the files are
+     * enumerated, so nothing which changes in between is missed.
+     *
+     * Files above 128 KB are served from a read-only mapping, and a mapped file which is truncated in place crashes
+     * the process with SIGBUS on the next read. Deploys must therefore write a new file next to the old one and
+     * rename it over it, which leaves the mapping of the old file valid until it is reloaded.
+     */
+    private Void watchStaticFiles() {
+        final DirectoryWatcher watcher;
 
         try {
-            Files.walk(Paths.get("static"))
-                    .filter(Files::isRegularFile)
-                    .forEach(path -> staticFiles.put(path.toString(), createStaticFile(path)));
+            watcher = new DirectoryWatcher(staticDirectory, this::onStaticFilesChanged, this::rescanStaticFiles);
+        } catch (final IOException e) {
+            log.error("Unable to watch static files", e);
+
+            return null;
+        }
+
+        staticPaths.putAll(enumerateStaticFiles());
+        watcher.start();
+
+        log.info("Total static files: {}", staticPaths.size());
+
+        return null;
+    }
+
+    private Map<String, Path> enumerateStaticFiles() {
+        final Map<String, Path> paths = new HashMap<>();
+
+        try (final Stream<Path> files = Files.walk(staticDirectory)) {
+            files.filter(Files::isRegularFile)
+                    .filter(path -> !isPrecompressedVariant(path))
+                    .forEach(path -> paths.put(staticKey(path), path));
         } catch (final Exception e) {
             log.error("Unable to enumerate static files", e);
         }
 
-        log.info("Total static files: {}", staticFiles.size());
+        return paths;
+    }
+
+    private String staticKey(final Path path) {
+        return Paths.get("static").resolve(staticDirectory.relativize(path)).toString();
+    }
+
+    /**
+     * A precompressed variant belongs to the entry of its original, which is rebuilt along with it.
+     */
+    private void onStaticFilesChanged(final Set<Path> changed) {
+        final Set<Path> affected = new LinkedHashSet<>();
+
+        for (final Path path : changed) {
+            affected.add(path);
+
+            for (final String encoding : STATIC_ENCODINGS) {
+                final String extension = encodingToExtension(encoding);
+                final String fileName = path.toString();
+
+                affected.add(Paths.get(fileName + extension));
+
+                if (fileName.endsWith(extension)) {
+                    affected.add(Paths.get(fileName.substring(0, fileName.length() - extension.length())));
+                }
+            }
+        }
+
+        for (final Path path : affected) {
+            final String key = staticKey(path);
+
+            if (Files.isRegularFile(path) && !isPrecompressedVariant(path)) {
+                if (staticPaths.put(key, path) == null) {
+                    log.info("Added static file {}", path);
+                }
+
+                reloadStaticFile(key, path);
+            } else {
+                // Also drops what a request might have been loading while the file went away
+                staticFiles.remove(key);
+
+                if (staticPaths.remove(key) != null) {
+                    log.info("Removed static file {}", path);
+                }
+            }
+        }
+    }
+
+    private void rescanStaticFiles() {
+        final Map<String, Path> paths = enumerateStaticFiles();
+
+        staticPaths.keySet().retainAll(paths.keySet());
+        staticPaths.putAll(paths);
+        staticFiles.keySet().retainAll(paths.keySet());
+
+        for (final Map.Entry<String, Path> entry : paths.entrySet()) {
+            reloadStaticFile(entry.getKey(), entry.getValue());
+        }
+
+        log.info("Total static files: {}", staticPaths.size());
+    }
 
-        start(host);
+    /**
+     * Loads the file again if it was loaded before and swaps the new version in, so requests keep being served the
+     * old one meanwhile. The check waits for a request which is loading the same file, and the swap replaces
+     * whatever that request loaded, so contents read before the change are never kept. Entries which were never
+     * requested are simply loaded on their first request.
+     */
+    private void reloadStaticFile(final String key, final Path path) {
+        if (staticFiles.computeIfPresent(key, (ignored, loaded) -> loaded) == null) {
+            return;
+        }
+
+        final StaticFile reloaded;
+
+        try {
+            reloaded = createStaticFile(path);
+        } catch (final RuntimeException e) {
+            // Most likely still being written, the next event or request loads it again
+            log.error("Unable to reload static file {}", path, e);
 
-        log.info("Done!");
+            staticFiles.remove(key);
+
+            return;
+        }
+
+        // Not put back if the file went away meanwhile
+        staticFiles.replace(key, reloaded);
     }
 
-    public static void ignite(final HTTPServer.VirtualHost host) {
-        new DgPic(host);
+    /**
+     * Holds requests which came in while starting up until the site is ready.
+     */
+    private void awaitReady() {
+        try {
+            ready.get(Long.getLong("dgpic.startupWaitSeconds", 30), TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new OverloadedException("Starting up", 5);
+        } catch (final TimeoutException e) {
+            throw new OverloadedException("Starting up", 5);
+        } catch (final ExecutionException e) {
+            throw new OverloadedException("Failed to start", 60);
+        }
+    }
+
+    static void registerPoolMetrics(final Metrics metrics, final HikariDataSource pool) {
+        final String help = "Database pool connections by state.";
+
+        metrics.gauge("dgpic_db_pool_connections", help, () -> pool.getHikariPoolMXBean().getActiveConnections(), "state", "active");
+        metrics.gauge("dgpic_db_pool_connections", help, () -> pool.getHikariPoolMXBean().getIdleConnections(), "state", "idle");
+        metrics.gauge("dgpic_db_pool_pending_threads", "Threads waiting for a database connection.", () -> pool.getHikariPoolMXBean().getThreadsAwaitingConnection());
+    }
+
+    private static byte[] loadNoneImage(final Path file) {
+        try {
+            return Files.readAllBytes(file);
+        } catch (final IOException e) {
+            log.error("Unable to load placeholder image", e);
+
+            return null;
+        }
     }
 
     private static void setTableCached(final Connection connection, final String table) throws SQLException {
@@ -137,26 +597,157 @@ public class DgPic {
 
     private static StaticFile createStaticFile(final Path path) {
         try {
-            final long size = Files.size(path);
-            final long maxSize = 1024 * 128; // 128kb
-            final byte[] contents;
+            final String contentType = filePathToContentType(path.toString());
 
-            if (size <= maxSize) {
-                contents = Files.readAllBytes(path);
+            // Static files change between deploys, so pages are always revalidated and assets only kept for a day
+            final String cacheControl = "text/html".equals(contentType) ? "no-cache" : "public, max-age=86400";
 
-                log.info("Cached static file {} with size {}", path, byteCountToDisplaySize(contents.length));
-            } else {
-                contents = null;
+            final StaticFile staticFile = loadStaticFile(path, contentType, null, cacheControl);
 
-                log.info("Serving {} from disk", path);
+            for (final String encoding : STATIC_ENCODINGS) {
+                final Path precompressed = Paths.get(path + encodingToExtension(encoding));
+
+                if (Files.isRegularFile(precompressed)) {
+                    staticFile.encodedVariants.put(encoding, loadStaticFile(precompressed, contentType, encoding, cacheControl));
+                }
+            }
+
+            final byte[] contents = staticFile.getCachedContents();
+
+            if (contents != null && staticFile.getEncodedVariant("gzip") == null && isCompressible(contentType)) {
+                final byte[] gzipped = gzip(contents);
+
+                // Not worth it for tiny or already compressed files
+                if (gzipped.length < contents.length * 9 / 10) {
+                    final CacheMetadata metadata = staticFile.getCacheMetadata();
+                    final CacheMetadata gzippedMetadata = new CacheMetadata(
+                            encodedEtag(metadata.getEtag(), "gzip"), metadata.getLastModified(), cacheControl);
+
+                    staticFile.encodedVariants.put("gzip", new StaticFile(contentType, "gzip", null, gzipped, null, gzippedMetadata));
+
+                    log.info("Compressed static file {} to {}", path, byteCountToDisplaySize(gzipped.length));
+                }
             }
 
-            return new StaticFile(filePathToContentType(path.toString()), contents);
+            return staticFile;
         } catch (IOException e) {
             throw new RuntimeException("Error when creating static file", e);
         }
     }
 
+    private static StaticFile loadStaticFile(final Path path, final String contentType, final String encoding, final String cacheControl) throws IOException {
+        final long size = Files.size(path);
+        final long lastModified = Files.getLastModifiedTime(path).toMillis();
+        final long maxSize = 1024 * 128; // 128kb
+        final byte[] contents;
+        final ByteBuffer mapped;
+        final String etag;
+
+        if (size <= maxSize) {
+            contents = Files.readAllBytes(path);
+
+            final CRC32 checksum = new CRC32();
+            checksum.update(contents);
+
+            etag = "\"" + Long.toHexString(checksum.getValue()) + "\"";
+            mapped = null;
+
+            log.info("Cached static file {} with size {}", path, byteCountToDisplaySize(contents.length));
+        } else {
+            contents = null;
+            etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+
+            if (size <= Integer.MAX_VALUE) {
+                // Stays valid when the file is renamed over, see watchStaticFiles for what deploys must not do
+                try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+
+                log.info("Mapped static file {} with size {}", path, byteCountToDisplaySize(size));
+            } else {
+                mapped = null;
+
+                log.info("Serving {} from disk", path);
+            }
+        }
+
+        final String variantEtag = encoding == null ? etag : encodedEtag(etag, encoding);
+
+        return new StaticFile(contentType, encoding, path, contents, mapped, new CacheMetadata(variantEtag, lastModified, cacheControl));
+    }
+
+    private static boolean isPrecompressedVariant(final Path path) {
+        final String fileName = path.toString();
+
+        for (final String encoding : STATIC_ENCODINGS) {
+            final String extension = encodingToExtension(encoding);
+
+            if (fileName.endsWith(extension) && Files.isRegularFile(Paths.get(fileName.substring(0, fileName.length() - extension.length())))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static String encodingToExtension(final String encoding) {
+        return "gzip".equals(encoding) ? ".gz" : "." + encoding;
+    }
+
+    /**
+     * Every encoding is a separate representation, so it needs its own strong tag
+     */
+    private static String encodedEtag(final String etag, final String encoding) {
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    private static boolean isCompressible(final String contentType) {
+        return contentType.startsWith("text/") || "image/x-icon".equals(contentType);
+    }
+
+    private static byte[] gzip(final byte[] contents) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(contents.length / 2);
+
+        try (final GZIPOutputStream gzip = new GZIPOutputStream(out) {{ def.setLevel(Deflater.BEST_COMPRESSION); }}) {
+            gzip.write(contents);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Whether the Accept-Encoding header lists the coding with a non-zero quality
+     */
+    private static boolean acceptsEncoding(final String acceptEncoding, final String encoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        for (final String element : acceptEncoding.split(",")) {
+            final String[] parameters = element.split(";");
+
+            if (!parameters[0].trim().equalsIgnoreCase(encoding)) {
+                continue;
+            }
+
+            for (int index = 1; index < parameters.length; index++) {
+                final String parameter = parameters[index].trim();
+
+                if (parameter.startsWith("q=")) {
+                    try {
+                        return Float.parseFloat(parameter.substring(2)) > 0;
+                    } catch (final NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
     private static String filePathToContentType(final String filePath) {
         final int index = filePath.lastIndexOf('.');
 
@@ -179,36 +770,59 @@ public class DgPic {
         }
     }
 
-    private HTTPServer.ContextHandler wrapHandler(final HTTPServer.ContextHandler handler) {
+    private HTTPServer.ContextHandler wrapHandler(final String path, final HTTPServer.ContextHandler handler) {
+        final Metrics.Histogram latency = metrics.histogram("dgpic_http_request_duration_seconds", "Time to handle a request, including sending the response.", "route", path);
+        final String errorHelp = "Requests which failed, by route and cause.";
+        final LongAdder invalidInputs = metrics.counter("dgpic_http_errors_total", errorHelp, "route", path, "cause", "invalid_input");
+        final LongAdder overloads = metrics.counter("dgpic_http_errors_total", errorHelp, "route", path, "cause", "overloaded");
+        final LongAdder errors = metrics.counter("dgpic_http_errors_total", errorHelp, "route", path, "cause", "error");
+
         return (req, res) -> {
-            try {
-                /*String accept = req.getHeaders().get("Accept-Encoding");
+            final long start = System.nanoTime();
 
-                if (accept != null && accept.contains("gzip")) {
-                    res.getHeaders().add("Content-Encoding", "gzip");
-                }*/
+            try {
+                // A site which failed to start keeps answering with 503 while the others serve
+                if (!ready.isDone() || ready.isCompletedExceptionally()) {
+                    awaitReady();
+                }
 
                 return handler.serve(req, res);
             } catch (final InvalidInputException invalidInput) {
+                invalidInputs.increment();
+
                 log.error("Invalid input when handling request {}", req.getURI(), invalidInput);
 
                 res.send(400, invalidInput.getMessage());
 
+                return 0;
+            } catch (final OverloadedException overloaded) {
+                overloads.increment();
+
+                log.info("Overloaded when handling request {}: {}", req.getURI(), overloaded.getMessage());
+
+                res.getHeaders().add("Retry-After", String.valueOf(overloaded.getRetryAfterSeconds()));
+                res.send(503, overloaded.getMessage());
+
                 return 0;
             } catch (final Exception e) {
+                errors.increment();
+
                 log.error("Error when handling request {}", req.getURI(), e);
 
                 return 500;
+            } finally {
+                latency.recordSince(start);
             }
         };
     }
 
-    private void post(final HTTPServer.VirtualHost host, final String path, final HTTPServer.ContextHandler handler) {
-        host.addContext(path, wrapHandler(handler), "POST");
+    private void post(final int siteIndex, final String path, final HTTPServer.ContextHandler handler) {
+        engine.addContext(siteIndex, path, wrapHandler(path, handler), "POST");
     }
 
-    private void get(final HTTPServer.VirtualHost host, final String path, final HTTPServer.ContextHandler handler) {
-        host.addContext(path, wrapHandler(handler), "GET");
+    private void get(final int siteIndex, final String path, final HTTPServer.ContextHandler handler) {
+        // HEAD is handled explicitly so jlhttp doesn't need to know how a body is encoded
+        engine.addContext(siteIndex, path, wrapHandler(path, handler), "GET", "HEAD");
     }
 
     private Iterable<Part> multipartParts(final HTTPServer.Request request) {
@@ -222,8 +836,8 @@ public class DgPic {
         }
     }
 
-    private void start(final HTTPServer.VirtualHost host) {
-        post(host, "/upload", (req, res) -> {
+    private void start(final int siteIndex) {
+        post(siteIndex, "/upload", (req, res) -> {
             final int version = Integer.valueOf(req.getParams().getOrDefault("version", "1"));
 
             switch (version) {
@@ -244,6 +858,11 @@ public class DgPic {
                                 res.send(400, String.format("{ \"success\": false, \"message\": \"%s\" }", e.getMessage()));
 
                                 log.error("Error while uploading image", e);
+                            } catch (final OverloadedException e) {
+                                res.getHeaders().add("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+                                res.send(503, String.format("{ \"success\": false, \"message\": \"%s\" }", e.getMessage()));
+
+                                log.info("Upload rejected: {}", e.getMessage());
                             }
 
                             return 0;
@@ -261,392 +880,572 @@ public class DgPic {
             return 0;
         });
 
-        get(host, "/favicon.ico", (req, res) -> serveStaticFile(res, "/static/favicon.ico"));
-        get(host, "/static", (req, res) -> serveStaticFile(res, req.getPath()));
+        get(siteIndex, "/stats", (req, res) -> {
+            final String name = req.getParams().get("name");
+
+            if (name == null) {
+                return serveJson(req, res, viewCounters.toJson(20));
+            }
+
+            if (!NameAllocator.isValidWord(name)) {
+                return 400;
+            }
 
-        get(host, "/", (req, res) -> {
+            return serveJson(req, res, String.format("{ \"name\": \"%s\", \"views\": %d, \"downloads\": %d }",
+                    name, viewCounters.getViews(name), viewCounters.getDownloads(name)));
+        });
+
+        get(siteIndex, "/favicon.ico", (req, res) -> serveStaticFile(req, res, "/static/favicon.ico"));
+        get(siteIndex, "/static", (req, res) -> serveStaticFile(req, res, req.getPath()));
+
+        get(siteIndex, "/", (req, res) -> {
             final String path = req.getPath();
 
             if ("/".equals(path) || "/index.html".equals(path)) {
-                return serveStaticFile(res, "/static/index.html");
+                return serveStaticFile(req, res, "/static/index.html");
             }
 
-            final Matcher matcher = imagePathPattern.matcher(path);
+            final int route = NameAllocator.parseImagePath(path);
 
-            if (!matcher.matches()) {
+            if (route == -1) {
                 log.info("Tried to access unmapped {}", req.getPath());
 
                 return 404;
             }
 
-            final String fileName = matcher.group("name") + ".jpg";
-            final File imageFile;
+            final int nameIndex = route >>> 1;
+            final boolean isThumbnail = (route & 1) != 0;
 
-            if (matcher.group("mini") != null) {
-                imageFile = imageFileOrNone(Paths.get("scr", "mini", fileName).toFile());
-            } else {
-                imageFile = imageFileOrNone(Paths.get("scr", fileName).toFile());
+            // The tag is derived from the name alone, so a matching tag needs neither the cache nor the disk
+            final boolean isRevalidated = isImageEtag(req.getHeaders().get("If-None-Match"), path);
+
+            // Unknown names are answered before anything is allocated for them
+            if (!isRevalidated && !uploadPipeline.isPending(nameIndex) && !publishedNames.contains(nameIndex)) {
+                return serveNone(req, res);
+            }
+
+            final ImageRoute imageRoute = imageRoute(route, path);
+
+            if (isRevalidated) {
+                if (!isThumbnail) {
+                    recordView(req, imageRoute.getName(), imageRoute.getRevalidated());
+                }
+
+                return serveNotModified(res, imageRoute.getRevalidated());
             }
 
-            return serveFile(res, imageFile, "image/jpeg");
+            imageBulkhead.acquire();
+
+            try {
+                return serveImage(req, res, imageRoute, nameIndex, isThumbnail);
+            } finally {
+                imageBulkhead.release();
+            }
         });
     }
 
-    private void setupOkResponse(final HTTPServer.Response res, final String contentType, final long contentLength) throws IOException {
-        res.getHeaders().add("Content-Type", contentType);
-        res.getHeaders().add("Content-Length", String.valueOf(contentLength));
+    /**
+     * Everything which can wait for the upload pipeline or the disk, so it runs inside the image bulkhead.
+     */
+    private ImageRoute imageRoute(final int route, final String path) {
+        final ImageRoute known = imageRoutes.get(route);
 
-        res.sendHeaders(200);
+        if (known != null) {
+            return known;
+        }
+
+        // The tag is the path without its slash in quotes
+        imageRoutes.compareAndSet(route, null, new ImageRoute(path.substring(1, 6), "\"" + path.substring(1) + "\""));
+
+        return imageRoutes.get(route);
     }
 
-    private int serveFile(final HTTPServer.Response res, final File file, final String contentType) throws IOException {
-        if (!file.exists()) {
-            return 404;
-        }
+    private int serveImage(final HTTPServer.Request req, final HTTPServer.Response res, final ImageRoute imageRoute, final int nameIndex, final boolean isThumbnail) throws IOException {
+        final ImageCache cache = isThumbnail ? thumbnailCache : imageCache;
+        final String name = imageRoute.getName();
 
-        setupOkResponse(res, contentType, file.length());
+        // Freshly uploaded images become visible once the pipeline has persisted them
+        uploadPipeline.awaitProcessing(name, 30_000);
 
-        try {
-            FileUtils.copyFile(file, res.getBody());
-        } catch (final SocketException exception) {
-            log.error("Socket exception when streaming file: {}", exception.getMessage());
+        if (!publishedNames.contains(nameIndex)) {
+            return serveNone(req, res);
         }
 
-        return 0;
-    }
+        final int cacheKey = cacheKeyBase + nameIndex;
+        final ImageCache.Entry cachedEntry = cache.get(cacheKey);
 
-    private int serveStaticFile(final HTTPServer.Response res, final String pathStartingWithSlash) throws IOException {
-        final String relativePath = pathStartingWithSlash.substring(1);
-        final StaticFile staticFile = staticFiles.get(relativePath);
+        if (cachedEntry != null) {
+            final CacheMetadata cacheMetadata = imageRoute.getServed(cachedEntry.getLastModified());
 
-        if (staticFile == null) {
-            return 404;
+            if (!isThumbnail) {
+                recordView(req, name, cacheMetadata);
+            }
+
+            return serveContents(req, res, cachedEntry.getContents(), "image/jpeg", cacheMetadata);
         }
 
-        final byte[] contents = staticFile.getCachedContents();
+        if (isThumbnail) {
+            final ImageCache.Entry packedEntry = imageStore.readThumbnail(name);
 
-        if (contents != null) {
-            setupOkResponse(res, staticFile.getContentType(), contents.length);
+            if (packedEntry != null) {
+                cache.put(cacheKey, packedEntry);
 
-            try {
-                IOUtils.copyLarge(new ByteArrayInputStream(contents), res.getBody());
-            } catch (final SocketException exception) {
-                log.error("Socket exception when streaming file: {}", exception.getMessage());
+                return serveContents(req, res, packedEntry.getContents(), "image/jpeg", imageRoute.getServed(packedEntry.getLastModified()));
             }
+        }
 
-            return 0;
+        final File imageFile = isThumbnail ? imageStore.findLegacyThumbnail(name) : imageStore.findImage(name);
+
+        if (imageFile == null) {
+            return serveNone(req, res);
         }
 
-        return serveFile(res, new File(relativePath), staticFile.getContentType());
+        final ImageCache.Entry loadedEntry = cache.load(cacheKey, imageFile);
+        final CacheMetadata cacheMetadata = imageRoute.getServed(loadedEntry != null ? loadedEntry.getLastModified() : imageFile.lastModified());
+
+        if (!isThumbnail) {
+            recordView(req, name, cacheMetadata);
+        }
+
+        if (loadedEntry != null) {
+            return serveContents(req, res, loadedEntry.getContents(), "image/jpeg", cacheMetadata);
+        }
+
+        return serveFile(req, res, imageFile, "image/jpeg", cacheMetadata);
     }
 
-    private File imageFileOrNone(final File file) {
-        if (!file.exists()) {
-            return new File("scr", "none.jpg");
+    /**
+     * Whether the header is exactly the tag of the image path, which is the path without its slash in quotes.
+     */
+    private static boolean isImageEtag(final String ifNoneMatch, final String path) {
+        return ifNoneMatch != null
+                && ifNoneMatch.length() == path.length() + 1
+                && ifNoneMatch.charAt(0) == '"'
+                && ifNoneMatch.charAt(path.length()) == '"'
+                && ifNoneMatch.regionMatches(1, path, 1, path.length() - 1);
+    }
+
+    /**
+     * Revalidations count as views, a download is a view which is answered with the whole image.
+     */
+    private void recordView(final HTTPServer.Request req, final String name, final CacheMetadata cacheMetadata) {
+        if (!"GET".equals(req.getMethod())) {
+            return;
         }
 
-        return file;
+        viewCounters.recordView(name, req.getHeaders().get("Referer"));
+
+        if (req.getHeaders().get("Range") == null && conditionalStatus(req, cacheMetadata) == 200) {
+            viewCounters.recordDownload(name);
+        }
     }
 
-    private BufferedImage resizeImage(final BufferedImage image, final int targetWidth, final int targetHeight) {
-        int w = image.getWidth();
-        int h = image.getHeight();
+    private int serveNone(final HTTPServer.Request req, final HTTPServer.Response res) throws IOException {
+        if (noneImage == null) {
+            return 404;
+        }
 
-        BufferedImage result;
+        // The name might get allocated later, so the placeholder must not be cached
+        res.getHeaders().add("Cache-Control", "no-cache");
 
-        while (true) {
-            if (w > targetWidth) {
-                w = w / 2;
+        return serveContents(req, res, noneImage, "image/jpeg", null);
+    }
 
-                if (w < targetWidth) {
-                    w = targetWidth;
-                }
-            }
+    private void addCacheHeaders(final HTTPServer.Response res, final CacheMetadata cacheMetadata) {
+        if (cacheMetadata == null) {
+            return;
+        }
 
-            if (h > targetHeight) {
-                h = h / 2;
+        res.getHeaders().add("ETag", cacheMetadata.getEtag());
+        res.getHeaders().add("Cache-Control", cacheMetadata.getCacheControl());
 
-                if (h < targetHeight) {
-                    h = targetHeight;
-                }
-            }
+        if (cacheMetadata.getLastModified() > 0) {
+            res.getHeaders().add("Last-Modified", HTTPServer.formatDate(cacheMetadata.getLastModified()));
+        }
+    }
 
-            result = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+    private void setupResponse(final HTTPServer.Response res, final int status, final String contentType, final long contentLength, final CacheMetadata cacheMetadata) throws IOException {
+        res.getHeaders().add("Content-Type", contentType);
+        res.getHeaders().add("Content-Length", String.valueOf(contentLength));
+        res.getHeaders().add("Accept-Ranges", "bytes");
 
-            final Graphics2D graphics = result.createGraphics();
-            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-            graphics.drawImage(image, 0, 0, w, h, null);
-            graphics.dispose();
+        addCacheHeaders(res, cacheMetadata);
 
-            if (w == targetWidth) {
-                break;
-            }
+        res.sendHeaders(status);
+    }
+
+    private int serveNotModified(final HTTPServer.Response res, final CacheMetadata cacheMetadata) throws IOException {
+        addCacheHeaders(res, cacheMetadata);
+
+        res.sendHeaders(304);
+
+        return 0;
+    }
+
+    /**
+     * Evaluates If-None-Match, If-Modified-Since and friends.
+     *
+     * @return 200 if the full body should be sent, 304 or 412 otherwise
+     */
+    private int conditionalStatus(final HTTPServer.Request req, final CacheMetadata cacheMetadata) {
+        if (cacheMetadata == null) {
+            return 200;
         }
 
-        return result;
+        return HTTPServer.getConditionalStatus(req, cacheMetadata.getLastModified(), cacheMetadata.getEtag());
     }
 
-    private BufferedImage generateThumbnail(final BufferedImage fromImage, final String name, final int maxWidth, final int maxHeight) {
-        final BufferedImage thumbnail = new BufferedImage(maxWidth, maxHeight, BufferedImage.TYPE_INT_ARGB);
+    /**
+     * A Range only applies when If-Range is absent or still matches the current representation.
+     */
+    private boolean ifRangeMatches(final HTTPServer.Request req, final CacheMetadata cacheMetadata) {
+        final String ifRange = req.getHeaders().get("If-Range");
+
+        if (ifRange == null) {
+            return true;
+        }
+
+        if (cacheMetadata == null) {
+            return false;
+        }
 
-        final Graphics2D graphics = thumbnail.createGraphics();
-        final int originalWidth = fromImage.getWidth();
-        final int originalHeight = fromImage.getHeight();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // Strong comparison, weak tags never match
+            return ifRange.equals(cacheMetadata.getEtag());
+        }
 
-        graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        final Date date = req.getHeaders().getDate("If-Range");
 
-        graphics.setColor(Color.WHITE);
-        graphics.fillRect(0, 0, maxWidth, maxHeight);
+        return date != null && date.getTime() == cacheMetadata.getLastModified();
+    }
 
-        final int thumbWidth = maxWidth;
-        final int thumbHeight = maxHeight - 16;
+    private int serveFile(final HTTPServer.Request req, final HTTPServer.Response res, final File file, final String contentType, final CacheMetadata cacheMetadata) throws IOException {
+        if (!file.exists()) {
+            return 404;
+        }
 
-        if (originalWidth <= thumbWidth && originalHeight <= thumbHeight) {
-            graphics.drawImage(fromImage, (thumbWidth - originalWidth) / 2, (thumbHeight - originalHeight) / 2, null);
-        } else {
-            float scale = Math.min(thumbWidth / (float) originalWidth, thumbHeight / (float) originalHeight);
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return serveBody(req, res, contentType, channel.size(), cacheMetadata,
+                    (out, position, count) -> transferFile(channel, position, count, out));
+        }
+    }
+
+    /**
+     * Hands the file region to the response without pulling it through a heap buffer when the body is backed
+     * by a channel (sendfile). Otherwise the JDK falls back to copying through its own temporary direct buffer.
+     */
+    private static void transferFile(final FileChannel channel, long position, long count, final OutputStream out) throws IOException {
+        final WritableByteChannel target = Channels.newChannel(out);
 
-            float newWidth = originalWidth;
-            float newHeight = originalHeight;
+        while (count > 0) {
+            final long transferred = channel.transferTo(position, count, target);
 
-            if (scale < 1.0) {
-                newWidth = scale * originalWidth;
-                newHeight = scale * originalHeight;
+            if (transferred <= 0) {
+                throw new EOFException("File was truncated while streaming");
             }
 
-            float targetX = (thumbWidth - newWidth) / 2;
-            float targetY = (thumbHeight - newHeight) / 2;
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    /**
+     * Writes a region of a shared buffer, each call works on its own view of it.
+     */
+    private static void writeBuffer(final ByteBuffer buffer, final long position, final long count, final OutputStream out) throws IOException {
+        final ByteBuffer region = buffer.duplicate();
+        region.limit((int) (position + count));
+        region.position((int) position);
 
-            final BufferedImage scaled = resizeImage(fromImage, (int) newWidth, (int) newHeight);
-            graphics.drawImage(scaled, (int) targetX, (int) targetY, null);
+        final WritableByteChannel target = Channels.newChannel(out);
+
+        while (region.hasRemaining()) {
+            target.write(region);
         }
+    }
 
-        final Font font = new Font("arial", Font.PLAIN, 10);
+    private int serveJson(final HTTPServer.Request req, final HTTPServer.Response res, final String json) throws IOException {
+        final byte[] contents = json.getBytes(StandardCharsets.UTF_8);
 
-        graphics.setFont(font);
-        graphics.setColor(new Color(40, 40, 40));
-        graphics.fillRect(0, thumbHeight, thumbWidth, 16);
+        res.getHeaders().add("Content-Type", "application/json");
+        res.getHeaders().add("Content-Length", String.valueOf(contents.length));
+        res.getHeaders().add("Cache-Control", "no-cache");
+        res.sendHeaders(200);
 
-        graphics.setColor(Color.WHITE);
-        graphics.drawString("dg-pic.tk/" + name, 4, maxHeight - 4);
+        final OutputStream out = responseBody(req, res);
 
-        final String sizeLabel = "(" + originalWidth + "x" + originalHeight + ")";
-        final int labelWidth = graphics.getFontMetrics().stringWidth(sizeLabel);
+        if (out != null) {
+            out.write(contents);
+            bytesServed.add(contents.length);
+        }
 
-        graphics.drawString(sizeLabel, maxWidth - labelWidth - 4, maxHeight);
-        graphics.dispose();
+        return 0;
+    }
 
-        return thumbnail;
+    private int serveContents(final HTTPServer.Request req, final HTTPServer.Response res, final byte[] contents, final String contentType, final CacheMetadata cacheMetadata) throws IOException {
+        return serveBody(req, res, contentType, contents.length, cacheMetadata,
+                (out, position, count) -> out.write(contents, (int) position, (int) count));
     }
 
-    private static void shuffleArray(int[] array) {
-        int index, temp;
-        final Random random = new Random();
-        for (int i = array.length - 1; i > 0; i--) {
-            index = random.nextInt(i + 1);
-            temp = array[index];
-            array[index] = array[i];
-            array[i] = temp;
+    /**
+     * Bodies are always sent with an explicit Content-Length and might be compressed already, so they are written
+     * straight to the connection instead of through jlhttp's encoders.
+     *
+     * @return null for HEAD requests
+     */
+    private static OutputStream responseBody(final HTTPServer.Request req, final HTTPServer.Response res) {
+        if ("HEAD".equals(req.getMethod())) {
+            return null;
         }
+
+        return res.getOutputStream();
     }
 
-    private int[] generateAllPossibleFileNames() {
-        final char[] vowels = {'a', 'e', 'y', 'u', 'i', 'o'};
-        final char[] consonants = {'q', 'w', 'r', 't', 'p', 's', 'd', 'f', 'g', 'h', 'j', 'k', 'l', 'z', 'x', 'c', 'v', 'b', 'n', 'm'};
+    private interface BodyWriter {
+        void write(OutputStream out, long position, long count) throws IOException;
+    }
+
+    private int serveBody(final HTTPServer.Request req, final HTTPServer.Response res, final String contentType, final long length, final CacheMetadata cacheMetadata, final BodyWriter writer) throws IOException {
+        final int conditionalStatus = conditionalStatus(req, cacheMetadata);
 
-        int index = 0;
+        if (conditionalStatus == 304) {
+            return serveNotModified(res, cacheMetadata);
+        }
 
-        final int productSize = consonants.length * vowels.length * consonants.length * vowels.length * consonants.length;
-        final int[] product = new int[productSize];
+        if (conditionalStatus != 200) {
+            return conditionalStatus;
+        }
 
-        for (final char c1 : consonants) {
-            for (final char c2 : vowels) {
-                for (final char c3 : consonants) {
-                    for (final char c4 : vowels) {
-                        for (final char c5 : consonants) {
-                            // 6 bits per char
-                            final int encoded =
-                                    (c1 - 'a') << 26 |
-                                    (c2 - 'a') << 20 |
-                                    (c3 - 'a') << 14 |
-                                    (c4 - 'a') << 8 |
-                                    (c5 - 'a') << 2;
+        final List<long[]> ranges = ifRangeMatches(req, cacheMetadata) ? ByteRanges.parse(req.getHeaders().get("Range"), length) : null;
 
-                            product[index++] = encoded;
-                        }
-                    }
+        if (ranges != null && ranges.isEmpty()) {
+            res.getHeaders().add("Content-Range", "bytes */" + length);
+            res.getHeaders().add("Content-Length", "0");
+            res.sendHeaders(416);
+
+            return 0;
+        }
+
+        try {
+            if (ranges == null) {
+                setupResponse(res, 200, contentType, length, cacheMetadata);
+
+                final OutputStream body = responseBody(req, res);
+
+                if (body != null) {
+                    writer.write(body, 0, length);
+                    bytesServed.add(length);
                 }
+            } else if (ranges.size() == 1) {
+                final long[] range = ranges.get(0);
+
+                res.getHeaders().add("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+                setupResponse(res, 206, contentType, range[1] - range[0] + 1, cacheMetadata);
+
+                final OutputStream body = responseBody(req, res);
+
+                if (body != null) {
+                    writer.write(body, range[0], range[1] - range[0] + 1);
+                    bytesServed.add(range[1] - range[0] + 1);
+                }
+            } else {
+                serveMultipleRanges(req, res, contentType, length, cacheMetadata, ranges, writer);
             }
+        } catch (final SocketException exception) {
+            log.error("Socket exception when streaming file: {}", exception.getMessage());
         }
 
-        shuffleArray(product);
-
-        return product;
+        return 0;
     }
 
-    private static String decodeWord(final int encoded) {
-        // Only using 6 bits
-        final int mask = 0b00000000000000000000000000111111;
-        final char c1 = (char) (((encoded >> 26) & mask) + 'a');
-        final char c2 = (char) (((encoded >> 20) & mask) + 'a');
-        final char c3 = (char) (((encoded >> 14) & mask) + 'a');
-        final char c4 = (char) (((encoded >> 8)  & mask) + 'a');
-        final char c5 = (char) (((encoded >> 2)  & mask) + 'a');
+    private void serveMultipleRanges(final HTTPServer.Request req, final HTTPServer.Response res, final String contentType, final long length, final CacheMetadata cacheMetadata, final List<long[]> ranges, final BodyWriter writer) throws IOException {
+        final String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        final byte[][] partHeaders = new byte[ranges.size()][];
+        final byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
 
-        return new String(new char[] { c1, c2, c3, c4, c5 });
-    }
+        long contentLength = closing.length;
 
-    private synchronized String[] generateNextFileNames(int amount) {
-        final String[] result = new String[amount];
+        for (int index = 0; index < partHeaders.length; index++) {
+            final long[] range = ranges.get(index);
+
+            partHeaders[index] = ("\r\n--" + boundary + "\r\n" +
+                    "Content-Type: " + contentType + "\r\n" +
+                    "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+            contentLength += partHeaders[index].length + range[1] - range[0] + 1;
+        }
 
-        int index = 0;
+        setupResponse(res, 206, "multipart/byteranges; boundary=" + boundary, contentLength, cacheMetadata);
 
-        while (amount > 0) {
-            result[index++] = decodeWord(allPossibleNamesEncoded[nameCursor++]);
+        final OutputStream body = responseBody(req, res);
 
-            amount--;
+        if (body == null) {
+            return;
         }
 
-        return result;
-    }
+        for (int index = 0; index < partHeaders.length; index++) {
+            final long[] range = ranges.get(index);
 
-    private PreparedStatement query(final Connection connection, final String query) {
-        try {
-            return connection.prepareStatement(query);
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
+            body.write(partHeaders[index]);
+            writer.write(body, range[0], range[1] - range[0] + 1);
         }
+
+        body.write(closing);
+        bytesServed.add(contentLength);
     }
 
-    private String getNextFileName() {
-        try (final Connection connection = database.getConnection();
-             final ResultSet result = query(connection, "SELECT NAME FROM SCREENS WHERE FREE = TRUE ORDER BY RAND() LIMIT 1").executeQuery()) {
-            if (result.next()) {
-                return result.getString("NAME");
-            }
+    private int serveStaticFile(final HTTPServer.Request req, final HTTPServer.Response res, final String pathStartingWithSlash) throws IOException {
+        final String relativePath = pathStartingWithSlash.substring(1);
+        StaticFile identity = staticFiles.get(relativePath);
 
-            log.info("No more names in the database, generating 100 more");
+        if (identity == null) {
+            identity = staticFiles.computeIfAbsent(relativePath, key -> {
+                final Path path = staticPaths.get(key);
 
-            final String[] moreNames = generateNextFileNames(100);
-            final String mergeName =
-                    "merge into screens using(values(?)) \n" +
-                            "as vars(name)\n" +
-                            "on screens.name = vars.name\n" +
-                            "when not matched then\n" +
-                            "insert values vars.name, NOW(), 0, NULL, TRUE";
+                return path != null ? createStaticFile(path) : null;
+            });
+        }
+
+        if (identity == null) {
+            return 404;
+        }
+
+        StaticFile staticFile = identity;
+
+        if (identity.hasEncodedVariants()) {
+            res.getHeaders().add("Vary", "Accept-Encoding");
+
+            final String acceptEncoding = req.getHeaders().get("Accept-Encoding");
 
-            for (final String name : moreNames) {
-                try (final PreparedStatement mergeNameQuery = query(connection, mergeName)) {
-                    mergeNameQuery.setString(1, name);
-                    mergeNameQuery.execute();
+            for (final String encoding : STATIC_ENCODINGS) {
+                final StaticFile variant = identity.getEncodedVariant(encoding);
+
+                if (variant != null && acceptsEncoding(acceptEncoding, encoding)) {
+                    staticFile = variant;
+                    break;
                 }
             }
+        }
 
-            return getNextFileName();
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
+        if (staticFile.getContentEncoding() != null) {
+            res.getHeaders().add("Content-Encoding", staticFile.getContentEncoding());
         }
-    }
 
-    private String saveNewImage(final BufferedImage image, final byte[] imageData) {
-        try {
-            log.info("Saving new image of resolution {}x{}", image.getWidth(), image.getHeight());
+        final byte[] contents = staticFile.getCachedContents();
 
-            final String name = getNextFileName();
+        if (contents != null) {
+            return serveContents(req, res, contents, staticFile.getContentType(), staticFile.getCacheMetadata());
+        }
 
-            final BufferedImage thumbnail = generateThumbnail(image, name, 180, 140);
-            ImageIO.write(thumbnail, "png", new File(new File("scr", "mini"), name + ".jpg"));
+        final ByteBuffer mapped = staticFile.getMappedContents();
 
-            FileUtils.writeByteArrayToFile(new File("scr", name + ".jpg"), imageData);
+        if (mapped != null) {
+            return serveBody(req, res, staticFile.getContentType(), mapped.capacity(), staticFile.getCacheMetadata(),
+                    (out, position, count) -> writeBuffer(mapped, position, count, out));
+        }
 
-            try (final Connection connection = database.getConnection();
-                 final PreparedStatement query = query(connection, "UPDATE SCREENS SET UPLOADED = NOW(), FREE = FALSE WHERE NAME = ?")) {
-                query.setString(1, name);
-                query.execute();
-            }
+        return serveFile(req, res, staticFile.getPath().toFile(), staticFile.getContentType(), staticFile.getCacheMetadata());
+    }
 
-            // TODO tryToUpdateGallery
+    /**
+     * Records an image whose files are already written.
+     */
+    private CompletableFuture<Void> saveNewImage(final String name, final long imageSize) {
+        // TODO tryToUpdateGallery
 
-            log.info("Uploaded a new image of size {}", byteCountToDisplaySize(imageData.length));
+        return screensWriter.markUploaded(name).thenRun(() -> {
+            publishedNames.add(name);
 
-            return name;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+            log.info("Uploaded a new image {} of size {}", name, byteCountToDisplaySize(imageSize));
+        });
     }
 
     private String uploadImage(final InputStream inputStream) throws IOException {
-        final int twoMegabytes = 2 * 1024 * 1024;
+        uploadBulkhead.acquire();
 
+        try {
+            return receiveImage(inputStream);
+        } finally {
+            uploadBulkhead.release();
+        }
+    }
+
+    private String receiveImage(final InputStream inputStream) throws IOException {
         log.info("Uploading new image");
 
-        try (final MemoryCacheImageInputStream input = new MemoryCacheImageInputStream(inputStream)) {
-            final IIORegistry registry = IIORegistry.getDefaultInstance();
-            final ImageReaderSpi[] readers = new ImageReaderSpi[]{
-                    registry.getServiceProviderByClass(JPEGImageReaderSpi.class),
-                    registry.getServiceProviderByClass(PNGImageReaderSpi.class),
-                    registry.getServiceProviderByClass(GIFImageReaderSpi.class),
-                    registry.getServiceProviderByClass(BMPImageReaderSpi.class)
-            };
+        final MessageDigest digest = ContentIndex.newDigest();
+        final Path spooled = uploadPipeline.spool(inputStream, digest);
+        final byte[] contentHash = digest.digest();
+        final String existingName = contentIndex.find(contentHash);
 
-            for (final ImageReaderSpi reader : readers) {
-                if (reader.canDecodeInput(input)) {
-                    log.info("Decoding with {}", reader.getPluginClassName());
+        if (existingName != null) {
+            if (imageStore.findImage(existingName) != null) {
+                Files.deleteIfExists(spooled);
 
-                    ImageReader instance = null;
+                log.info("Upload is identical to {}", existingName);
 
-                    try {
-                        instance = reader.createReaderInstance();
+                return existingName;
+            }
 
-                        final ImageReadParam defaultReadParam = instance.getDefaultReadParam();
+            contentIndex.remove(contentHash);
+        }
 
-                        instance.setInput(input, true, true);
+        try {
+            uploadPipeline.sync(spooled);
+        } catch (final IOException e) {
+            Files.deleteIfExists(spooled);
 
-                        final BufferedImage readImage = instance.read(0, defaultReadParam);
+            throw e;
+        }
 
-                        final boolean wasOriginallyJpg = reader instanceof JPEGImageReaderSpi;
+        final ImageReaderSpi reader = uploadPipeline.detectFormat(spooled);
 
-                        if (!wasOriginallyJpg) {
-                            final ByteArrayOutputStream pngOut = new ByteArrayOutputStream();
-                            ImageIO.write(readImage, "png", pngOut);
+        if (reader == null) {
+            Files.deleteIfExists(spooled);
 
-                            log.info("PNG size: {}", byteCountToDisplaySize(pngOut.size()));
+            throw new InvalidInputException("Unsupported image format");
+        }
 
-                            if (pngOut.size() <= twoMegabytes) {
-                                return saveNewImage(readImage, pngOut.toByteArray());
-                            }
-                        }
+        final int admittedKilobytes;
 
-                        // JPG doesn't support transparency!
-                        final BufferedImage jpgImage = new BufferedImage(
-                                readImage.getWidth(null),
-                                readImage.getHeight(null),
-                                BufferedImage.TYPE_INT_RGB
-                        );
+        try {
+            admittedKilobytes = uploadPipeline.admit(spooled, reader, 1000);
+        } catch (final IOException | RuntimeException e) {
+            Files.deleteIfExists(spooled);
 
-                        jpgImage.getGraphics().drawImage(readImage, 0, 0 , null);
-                        jpgImage.getGraphics().dispose();
+            throw e;
+        }
 
-                        final ByteArrayOutputStream jpgOut = new ByteArrayOutputStream();
-                        ImageIO.write(jpgImage, "jpg", jpgOut);
+        final String name;
 
-                        log.info("Converted to JPEG of size: {}", byteCountToDisplaySize(jpgOut.size()));
+        try {
+            name = nameAllocator.allocate();
+        } catch (final RuntimeException e) {
+            Files.deleteIfExists(spooled);
+            uploadPipeline.cancelAdmission(admittedKilobytes);
 
-                        if (jpgOut.size() <= twoMegabytes) {
-                            return saveNewImage(readImage, jpgOut.toByteArray());
-                        }
+            throw e;
+        }
 
-                        throw new InvalidInputException("Image is too large");
-                    } finally {
-                        if (instance != null) {
-                            instance.dispose();
-                        }
-                    }
-                }
-            }
+        if (!uploadPipeline.reserve(name)) {
+            Files.deleteIfExists(spooled);
+            uploadPipeline.cancelAdmission(admittedKilobytes);
+
+            // Another upload holds the name, so it is not released either
+            throw new IllegalStateException("Allocated name " + name + " is already held by an upload");
+        }
+
+        uploadPipeline.processing(name).thenRunAsync(() -> contentIndex.add(contentHash, name), maintenance);
+
+        try {
+            uploadPipeline.submit(name, spooled, reader, admittedKilobytes);
+        } catch (final IOException | RuntimeException e) {
+            Files.deleteIfExists(spooled);
+            nameAllocator.release(name);
+
+            throw e;
         }
 
-        throw new InvalidInputException("Unsupported image format");
+        return name;
     }
 }
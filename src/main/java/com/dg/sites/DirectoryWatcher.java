@@ -0,0 +1,135 @@
+package com.dg.sites;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Watches a directory tree on a daemon thread and reports changed files in batches. Events which come in shortly
+ * after each other are reported together, so a file which is written in several steps is mostly reported once.
+ *
+ * Directories created later are watched too. Their files are reported as changed, since they can be written
+ * before the directory is registered.
+ *
+ * @author doc
+ */
+class DirectoryWatcher {
+    private static Logger log = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+    // Quiet period after an event before the batch is reported
+    private static final long SETTLE_MILLIS = 100;
+
+    private final Path root;
+    private final WatchService watchService;
+    private final Consumer<Set<Path>> onChange;
+    private final Runnable onOverflow;
+
+    /**
+     * @param onChange gets created, modified and deleted files, called on the watcher thread only
+     * @param onOverflow called instead when events were lost, everything below the root has to be looked at again
+     */
+    DirectoryWatcher(final Path root, final Consumer<Set<Path>> onChange, final Runnable onOverflow) throws IOException {
+        this.root = root;
+        this.onChange = onChange;
+        this.onOverflow = onOverflow;
+
+        watchService = root.getFileSystem().newWatchService();
+
+        registerTree(root, null);
+    }
+
+    void start() {
+        final Thread thread = new Thread(this::run, "DgPic watcher " + root.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                final Set<Path> changed = new LinkedHashSet<>();
+                boolean overflow = false;
+
+                WatchKey key = watchService.take();
+
+                while (key != null) {
+                    overflow |= collect(key, changed);
+                    key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+
+                try {
+                    if (overflow) {
+                        log.warn("Lost file events under {}, rescanning", root);
+                        onOverflow.run();
+                    } else if (!changed.isEmpty()) {
+                        onChange.accept(changed);
+                    }
+                } catch (final RuntimeException e) {
+                    log.error("Error when handling changes under {}", root, e);
+                }
+            }
+        } catch (final InterruptedException | ClosedWatchServiceException e) {
+            log.info("Stopped watching {}", root);
+        }
+    }
+
+    /**
+     * @return true if events were lost
+     */
+    private boolean collect(final WatchKey key, final Set<Path> changed) {
+        final Path directory = (Path) key.watchable();
+        boolean overflow = false;
+
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+
+            final Path path = directory.resolve((Path) event.context());
+
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                try {
+                    registerTree(path, changed);
+                } catch (final IOException e) {
+                    log.error("Unable to watch {}", path, e);
+                }
+            } else {
+                changed.add(path);
+            }
+        }
+
+        // A key which is no longer valid belongs to a deleted directory
+        key.reset();
+
+        return overflow;
+    }
+
+    /**
+     * @param files gets the files found on the way, null to skip them
+     */
+    private void registerTree(final Path directory, final Set<Path> files) throws IOException {
+        try (final Stream<Path> paths = Files.walk(directory)) {
+            for (final Path path : (Iterable<Path>) paths::iterator) {
+                if (Files.isDirectory(path)) {
+                    path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                } else if (files != null) {
+                    files.add(path);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package com.dg.sites;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+
+/**
+ * Downscales an image in a single separable tent filter pass over the raster data.
+ * Source rows are streamed one at a time, so besides the result only a handful of rows of the target width are
+ * kept in memory, however large the source is.
+ *
+ * @author doc
+ */
+class Downscaler {
+    private Downscaler() {
+    }
+
+    /**
+     * Filter taps of every target pixel along one axis, normalized to sum up to 1.
+     */
+    private static class Taps {
+        private final int[] first;
+        private final int[] count;
+        private final float[] weights;
+        private final int stride;
+
+        private Taps(final int sourceSize, final int targetSize) {
+            final double scale = sourceSize / (double) targetSize;
+
+            // Widened when downscaling, so every source pixel contributes
+            final double support = Math.max(1.0, scale);
+
+            stride = (int) Math.ceil(support) * 2 + 1;
+            first = new int[targetSize];
+            count = new int[targetSize];
+            weights = new float[targetSize * stride];
+
+            for (int target = 0; target < targetSize; target++) {
+                final double center = (target + 0.5) * scale;
+                final int from = Math.max(0, (int) Math.floor(center - support - 0.5) + 1);
+                final int to = Math.min(sourceSize - 1, (int) Math.ceil(center + support - 0.5) - 1);
+
+                double total = 0;
+
+                for (int source = from; source <= to; source++) {
+                    final double weight = Math.max(0, 1.0 - Math.abs((source + 0.5 - center) / support));
+
+                    weights[target * stride + source - from] = (float) weight;
+                    total += weight;
+                }
+
+                for (int source = from; source <= to; source++) {
+                    weights[target * stride + source - from] /= total;
+                }
+
+                first[target] = from;
+                count[target] = to - from + 1;
+            }
+        }
+
+        private int last(final int target) {
+            return first[target] + count[target] - 1;
+        }
+
+        /**
+         * Most target pixels any single source pixel contributes to.
+         */
+        private int maxOverlap() {
+            int started = 0;
+            int finished = 0;
+            int overlap = 0;
+
+            for (int source = 0; finished < first.length; source++) {
+                while (started < first.length && first[started] <= source) {
+                    started++;
+                }
+
+                overlap = Math.max(overlap, started - finished);
+
+                while (finished < started && last(finished) <= source) {
+                    finished++;
+                }
+            }
+
+            return overlap;
+        }
+    }
+
+    /**
+     * @return image of the requested size, {@link BufferedImage#TYPE_INT_ARGB}
+     */
+    static BufferedImage downscale(final BufferedImage source, final int targetWidth, final int targetHeight) {
+        final int sourceWidth = source.getWidth();
+        final int sourceHeight = source.getHeight();
+
+        final Taps horizontal = new Taps(sourceWidth, targetWidth);
+        final Taps vertical = new Taps(sourceHeight, targetHeight);
+
+        final BufferedImage result = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_ARGB);
+        final int[] target = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+
+        final RowReader reader = RowReader.of(source);
+        final int[] sourceRow = new int[sourceWidth];
+
+        // Horizontally filtered row in premultiplied a, r, g, b
+        final float[] filteredRow = new float[targetWidth * 4];
+
+        // Target rows being accumulated, a few when downscaling
+        final int ringSize = vertical.maxOverlap();
+        final float[][] accumulators = new float[ringSize][targetWidth * 4];
+
+        int nextTargetRow = 0;
+        int pendingTargetRow = 0;
+
+        for (int y = 0; y < sourceHeight && pendingTargetRow < targetHeight; y++) {
+            // Target rows are started in order as soon as their window reaches this source row
+            while (nextTargetRow < targetHeight && vertical.first[nextTargetRow] <= y) {
+                Arrays.fill(accumulators[nextTargetRow % ringSize], 0);
+                nextTargetRow++;
+            }
+
+            if (pendingTargetRow == nextTargetRow) {
+                continue;
+            }
+
+            reader.read(y, sourceRow);
+            filterRow(sourceRow, horizontal, filteredRow);
+
+            for (int row = pendingTargetRow; row < nextTargetRow; row++) {
+                final int tap = y - vertical.first[row];
+
+                if (tap >= vertical.count[row]) {
+                    continue;
+                }
+
+                final float weight = vertical.weights[row * vertical.stride + tap];
+                final float[] accumulator = accumulators[row % ringSize];
+
+                for (int i = 0; i < accumulator.length; i++) {
+                    accumulator[i] += filteredRow[i] * weight;
+                }
+            }
+
+            // Rows whose window ends here are complete
+            while (pendingTargetRow < nextTargetRow && vertical.last(pendingTargetRow) <= y) {
+                storeRow(accumulators[pendingTargetRow % ringSize], target, pendingTargetRow * targetWidth);
+                pendingTargetRow++;
+            }
+        }
+
+        return result;
+    }
+
+    private static void filterRow(final int[] sourceRow, final Taps taps, final float[] filteredRow) {
+        for (int x = 0, out = 0; x < taps.first.length; x++, out += 4) {
+            final int first = taps.first[x];
+            final int count = taps.count[x];
+            final int offset = x * taps.stride;
+
+            float a = 0, r = 0, g = 0, b = 0;
+
+            for (int tap = 0; tap < count; tap++) {
+                final int pixel = sourceRow[first + tap];
+                final float weight = taps.weights[offset + tap];
+                final float alphaWeight = (pixel >>> 24) * weight;
+
+                a += alphaWeight;
+                r += ((pixel >> 16) & 0xff) * alphaWeight;
+                g += ((pixel >> 8) & 0xff) * alphaWeight;
+                b += (pixel & 0xff) * alphaWeight;
+            }
+
+            filteredRow[out] = a;
+            filteredRow[out + 1] = r;
+            filteredRow[out + 2] = g;
+            filteredRow[out + 3] = b;
+        }
+    }
+
+    private static void storeRow(final float[] accumulator, final int[] target, final int offset) {
+        for (int x = 0, in = 0; in < accumulator.length; x++, in += 4) {
+            final float a = accumulator[in];
+
+            if (a < 0.5f) {
+                target[offset + x] = 0;
+                continue;
+            }
+
+            target[offset + x] = clamp(a) << 24 |
+                    clamp(accumulator[in + 1] / a) << 16 |
+                    clamp(accumulator[in + 2] / a) << 8 |
+                    clamp(accumulator[in + 3] / a);
+        }
+    }
+
+    private static int clamp(final float value) {
+        final int rounded = (int) (value + 0.5f);
+
+        return rounded < 0 ? 0 : rounded > 255 ? 255 : rounded;
+    }
+
+    /**
+     * Reads one row as ARGB, straight from the backing array for the layouts image decoders produce.
+     */
+    private static abstract class RowReader {
+        abstract void read(int y, int[] row);
+
+        static RowReader of(final BufferedImage image) {
+            final Raster raster = image.getRaster();
+            final int width = image.getWidth();
+
+            if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0) {
+                return generic(image);
+            }
+
+            switch (image.getType()) {
+                case BufferedImage.TYPE_INT_RGB:
+                case BufferedImage.TYPE_INT_ARGB: {
+                    final int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                    final int dataOffset = raster.getDataBuffer().getOffset();
+                    final int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+                    final boolean opaque = image.getType() == BufferedImage.TYPE_INT_RGB;
+
+                    return new RowReader() {
+                        @Override
+                        void read(final int y, final int[] row) {
+                            System.arraycopy(data, dataOffset + y * stride, row, 0, width);
+
+                            if (opaque) {
+                                for (int x = 0; x < width; x++) {
+                                    row[x] |= 0xff000000;
+                                }
+                            }
+                        }
+                    };
+                }
+
+                case BufferedImage.TYPE_3BYTE_BGR:
+                case BufferedImage.TYPE_4BYTE_ABGR:
+                case BufferedImage.TYPE_BYTE_GRAY: {
+                    final byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                    final ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+                    final int dataOffset = raster.getDataBuffer().getOffset();
+                    final int stride = sampleModel.getScanlineStride();
+                    final int pixelStride = sampleModel.getPixelStride();
+                    final int[] bands = sampleModel.getBandOffsets();
+                    final int bandCount = bands.length;
+
+                    return new RowReader() {
+                        @Override
+                        void read(final int y, final int[] row) {
+                            int index = dataOffset + y * stride;
+
+                            for (int x = 0; x < width; x++, index += pixelStride) {
+                                if (bandCount == 1) {
+                                    final int gray = data[index + bands[0]] & 0xff;
+                                    row[x] = 0xff000000 | gray << 16 | gray << 8 | gray;
+                                } else {
+                                    final int alpha = bandCount == 4 ? data[index + bands[3]] & 0xff : 0xff;
+
+                                    row[x] = alpha << 24 |
+                                            (data[index + bands[0]] & 0xff) << 16 |
+                                            (data[index + bands[1]] & 0xff) << 8 |
+                                            (data[index + bands[2]] & 0xff);
+                                }
+                            }
+                        }
+                    };
+                }
+
+                case BufferedImage.TYPE_BYTE_INDEXED: {
+                    final byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                    final int dataOffset = raster.getDataBuffer().getOffset();
+                    final int stride = ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+                    final IndexColorModel colorModel = (IndexColorModel) image.getColorModel();
+                    final int[] palette = new int[256];
+
+                    colorModel.getRGBs(palette);
+
+                    return new RowReader() {
+                        @Override
+                        void read(final int y, final int[] row) {
+                            final int index = dataOffset + y * stride;
+
+                            for (int x = 0; x < width; x++) {
+                                row[x] = palette[data[index + x] & 0xff];
+                            }
+                        }
+                    };
+                }
+
+                default:
+                    return generic(image);
+            }
+        }
+
+        private static RowReader generic(final BufferedImage image) {
+            final int width = image.getWidth();
+
+            return new RowReader() {
+                @Override
+                void read(final int y, final int[] row) {
+                    image.getRGB(0, y, width, 1, row, 0, width);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.dg.sites;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Site index by host name, looked up with the Host header as it comes, so finding the site of a request allocates
+ * nothing. The port and a trailing dot are ignored and names compare without case. Open addressing over arrays
+ * which are filled once before serving, so lookups don't lock.
+ *
+ * @author doc
+ */
+class HostTable {
+    private final String[] names;
+    private final int[] sites;
+    private final int mask;
+
+    HostTable(final Map<String, Integer> sitesByHost) {
+        int capacity = 16;
+
+        // At most half full, so probe sequences stay short
+        while (capacity < sitesByHost.size() * 2) {
+            capacity <<= 1;
+        }
+
+        names = new String[capacity];
+        sites = new int[capacity];
+        mask = capacity - 1;
+
+        for (final Map.Entry<String, Integer> entry : sitesByHost.entrySet()) {
+            final String host = entry.getKey().toLowerCase(Locale.ROOT);
+            final String name = host.substring(0, nameLength(host));
+            int slot = hash(name, name.length()) & mask;
+
+            while (names[slot] != null) {
+                if (names[slot].equals(name)) {
+                    throw new IllegalArgumentException("Host " + name + " belongs to more than one site");
+                }
+
+                slot = (slot + 1) & mask;
+            }
+
+            names[slot] = name;
+            sites[slot] = entry.getValue();
+        }
+    }
+
+    /**
+     * @param host value of the Host header, may be null
+     * @return index of the site or the fallback if the host is unknown
+     */
+    int find(final String host, final int fallback) {
+        if (host == null) {
+            return fallback;
+        }
+
+        final int length = nameLength(host);
+
+        for (int slot = hash(host, length) & mask; names[slot] != null; slot = (slot + 1) & mask) {
+            final String name = names[slot];
+
+            if (name.length() == length && host.regionMatches(true, 0, name, 0, length)) {
+                return sites[slot];
+            }
+        }
+
+        return fallback;
+    }
+
+    /**
+     * Length without the port and a trailing dot, IPv6 literals keep their brackets.
+     */
+    private static int nameLength(final String host) {
+        final int colon = host.startsWith("[") ? host.indexOf(':', host.indexOf(']')) : host.indexOf(':');
+        int length = colon >= 0 ? colon : host.length();
+
+        if (length > 0 && host.charAt(length - 1) == '.') {
+            length--;
+        }
+
+        return length;
+    }
+
+    private static int hash(final String host, final int length) {
+        int hash = 0;
+
+        for (int index = 0; index < length; index++) {
+            final char c = host.charAt(index);
+
+            hash = 31 * hash + (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+        }
+
+        return hash ^ (hash >>> 16);
+    }
+}
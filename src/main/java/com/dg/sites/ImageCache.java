@@ -0,0 +1,183 @@
+package com.dg.sites;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.apache.commons.io.FileUtils.byteCountToDisplaySize;
+
+/**
+ * Byte-budgeted cache of image bodies keyed by the dense index of the image name. Sites which share a cache each
+ * get their own range of keys.
+ * Lookups read a slot per possible name without locking or allocating. Eviction is second chance instead of
+ * strict LRU, as a hit only sets a flag on the entry rather than reordering anything under the lock.
+ *
+ * @author doc
+ */
+class ImageCache {
+    private static Logger log = LoggerFactory.getLogger(ImageCache.class);
+
+    private final String name;
+    private final long capacity;
+    private final long maxEntrySize;
+
+    private final AtomicReferenceArray<Entry> slots;
+
+    // Guarded by this, insertion-ordered, so iteration starts with the entry cached the longest ago
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(1024);
+    private long usedBytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    static class Entry {
+        private final byte[] contents;
+        private final long lastModified;
+
+        // Set by hits, cleared when the entry gets its second chance
+        private volatile boolean referenced;
+
+        Entry(final byte[] contents, final long lastModified) {
+            this.contents = contents;
+            this.lastModified = lastModified;
+        }
+
+        byte[] getContents() {
+            return contents;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * @param keys slots for keys from 0, one per possible name of every site
+     */
+    ImageCache(final String name, final long capacity, final int keys) {
+        this.name = name;
+        this.capacity = capacity;
+        this.maxEntrySize = capacity / 8;
+        this.slots = new AtomicReferenceArray<>(keys);
+
+        log.info("Image cache '{}' capacity: {}", name, byteCountToDisplaySize(capacity));
+    }
+
+    Entry get(final int key) {
+        final Entry entry = slots.get(key);
+
+        if (entry != null) {
+            // Only written once, so hot entries do not keep bouncing their cache line between cores
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+
+        return entry;
+    }
+
+    /**
+     * Reads the file and caches it, unless it is too large to fit in the cache.
+     *
+     * @return cached entry or null if the file should be served from disk
+     */
+    Entry load(final int key, final File file) throws IOException {
+        if (file.length() > maxEntrySize) {
+            return null;
+        }
+
+        final Entry entry = new Entry(Files.readAllBytes(file.toPath()), file.lastModified());
+
+        put(key, entry);
+
+        return entry;
+    }
+
+    synchronized void put(final int key, final Entry entry) {
+        if (entry.contents.length > maxEntrySize) {
+            return;
+        }
+
+        final Entry previous = entries.put(key, entry);
+
+        if (previous != null) {
+            usedBytes -= previous.contents.length;
+        }
+
+        slots.set(key, entry);
+        usedBytes += entry.contents.length;
+
+        while (usedBytes > capacity) {
+            final Iterator<Map.Entry<Integer, Entry>> iterator = entries.entrySet().iterator();
+            final Map.Entry<Integer, Entry> eldest = iterator.next();
+            final Entry candidate = eldest.getValue();
+
+            iterator.remove();
+
+            if (candidate.referenced) {
+                // Hit since it was cached or since its last chance, goes to the back
+                candidate.referenced = false;
+                entries.put(eldest.getKey(), candidate);
+
+                continue;
+            }
+
+            slots.set(eldest.getKey(), null);
+            usedBytes -= candidate.contents.length;
+
+            evictions.increment();
+        }
+    }
+
+    synchronized void invalidate(final int key) {
+        final Entry previous = entries.remove(key);
+
+        if (previous != null) {
+            slots.set(key, null);
+            usedBytes -= previous.contents.length;
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    synchronized int getSize() {
+        return entries.size();
+    }
+
+    void logStats() {
+        log.info("Image cache '{}': {} entries, {} of {}, {} hits, {} misses, {} evictions",
+                name, getSize(), byteCountToDisplaySize(getUsedBytes()), byteCountToDisplaySize(capacity),
+                getHits(), getMisses(), getEvictions());
+    }
+}
@@ -0,0 +1,215 @@
+package com.dg.sites;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Image readers, writers and an output buffer owned by a single thread and reused for every image it handles.
+ * Instances are not thread safe, the pipeline keeps one per thread. Everything is created on first use, as threads
+ * which only read image headers get one too.
+ *
+ * @author doc
+ */
+class ImageCodecs {
+    // Buffers which grew past that are not kept around after the image is written
+    private static final int MAX_RETAINED_BUFFER = 4 * 1024 * 1024;
+
+    private final Map<ImageReaderSpi, ImageReader> readers = new IdentityHashMap<>();
+
+    private final float jpegQuality;
+    private final int pngCompressionLevel;
+
+    private ImageWriter jpegWriter;
+    private ImageWriteParam jpegParam;
+
+    private ImageWriter pngWriter;
+    private ImageWriteParam pngParam;
+
+    private final BufferOutputStream buffer = new BufferOutputStream();
+
+    /**
+     * @param jpegQuality 0 to 1
+     * @param pngCompressionLevel deflate level 0 to 9 or -1 for the writer default
+     */
+    ImageCodecs(final float jpegQuality, final int pngCompressionLevel) {
+        this.jpegQuality = jpegQuality;
+        this.pngCompressionLevel = pngCompressionLevel;
+    }
+
+    /**
+     * Cached reader for the format, has to be {@link ImageReader#reset()} after use instead of disposed.
+     */
+    ImageReader reader(final ImageReaderSpi spi) throws IOException {
+        ImageReader reader = readers.get(spi);
+
+        if (reader == null) {
+            reader = spi.createReaderInstance();
+            readers.put(spi, reader);
+        }
+
+        return reader;
+    }
+
+    byte[] writeJpeg(final BufferedImage image, final int maxSize) throws IOException {
+        if (jpegWriter == null) {
+            jpegWriter = ImageIO.getImageWritersByFormatName("jpg").next();
+            jpegParam = jpegWriter.getDefaultWriteParam();
+            jpegParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            jpegParam.setCompressionQuality(jpegQuality);
+        }
+
+        return write(jpegWriter, jpegParam, image, maxSize);
+    }
+
+    byte[] writePng(final BufferedImage image, final int maxSize) throws IOException {
+        if (pngWriter == null) {
+            pngWriter = ImageIO.getImageWritersByFormatName("png").next();
+            pngParam = pngWriter.getDefaultWriteParam();
+
+            // Java 8 PNG writer has a fixed compression level
+            if (pngCompressionLevel >= 0 && pngParam.canWriteCompressed()) {
+                pngParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                pngParam.setCompressionQuality(1.0f - pngCompressionLevel / 9.0f);
+            }
+        }
+
+        return write(pngWriter, pngParam, image, maxSize);
+    }
+
+    /**
+     * @return encoded image or null if it turned out larger than maxSize, the encoding is abandoned right there
+     */
+    private byte[] write(final ImageWriter writer, final ImageWriteParam param, final BufferedImage image, final int maxSize) throws IOException {
+        buffer.rewind(maxSize);
+
+        try {
+            writer.setOutput(buffer);
+            writer.write(null, new IIOImage(image, null, null), param);
+
+            return buffer.toByteArray();
+        } catch (final IOException e) {
+            // Writers tend to wrap stream errors
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof SizeLimitException) {
+                    return null;
+                }
+            }
+
+            throw e;
+        } finally {
+            writer.reset();
+            buffer.trim();
+        }
+    }
+
+    private static class SizeLimitException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        SizeLimitException() {
+            super("Encoded image exceeds size limit", null);
+        }
+    }
+
+    /**
+     * Seekable in-memory output which keeps its array between images. The writers seek back to patch
+     * chunk and segment lengths, so a plain ByteArrayOutputStream is not enough.
+     */
+    private static class BufferOutputStream extends ImageOutputStreamImpl {
+        private static final int INITIAL_SIZE = 64 * 1024;
+
+        private byte[] data = new byte[0];
+        private int length;
+        private int limit;
+
+        void rewind(final int limit) {
+            this.limit = limit;
+            this.length = 0;
+            this.streamPos = 0;
+            this.flushedPos = 0;
+            this.bitOffset = 0;
+        }
+
+        void trim() {
+            if (data.length > MAX_RETAINED_BUFFER) {
+                data = new byte[INITIAL_SIZE];
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, length);
+        }
+
+        private void ensureCapacity(final long end) throws IOException {
+            if (end > limit) {
+                throw new SizeLimitException();
+            }
+
+            if (end > data.length) {
+                final long grown = Math.max(INITIAL_SIZE, data.length * 2L);
+
+                data = Arrays.copyOf(data, (int) Math.min(limit, Math.max(end, grown)));
+            }
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            flushBits();
+            ensureCapacity(streamPos + 1);
+
+            data[(int) streamPos++] = (byte) b;
+            length = Math.max(length, (int) streamPos);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            flushBits();
+            ensureCapacity(streamPos + len);
+
+            System.arraycopy(b, off, data, (int) streamPos, len);
+            streamPos += len;
+            length = Math.max(length, (int) streamPos);
+        }
+
+        @Override
+        public int read() throws IOException {
+            bitOffset = 0;
+
+            if (streamPos >= length) {
+                return -1;
+            }
+
+            return data[(int) streamPos++] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            bitOffset = 0;
+
+            if (streamPos >= length) {
+                return -1;
+            }
+
+            final int count = (int) Math.min(len, length - streamPos);
+
+            System.arraycopy(data, (int) streamPos, b, off, count);
+            streamPos += count;
+
+            return count;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package com.dg.sites;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+
+import static org.apache.commons.io.FileUtils.byteCountToDisplaySize;
+
+/**
+ * On-disk layout of uploaded images.
+ * Full images are sharded into a directory per two letter name prefix, scr/ka/kaqen.jpg.
+ * Thumbnails are appended to packed segment files, scr/mini/thumbnails-0000.pack, and located through an in-memory
+ * index over all possible names which is rebuilt by scanning the segments at startup. A record without a body
+ * removes the thumbnail of its name.
+ * Files of the flat layout used before, scr/kaqen.jpg and scr/mini/kaqen.jpg, are still found.
+ *
+ * @author doc
+ */
+class ImageStore {
+    private static Logger log = LoggerFactory.getLogger(ImageStore.class);
+
+    private static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    // Encoded name, body length, last modified millis, CRC32 of the body
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 8 + 4;
+
+    private static final int MAX_SEGMENTS = 255;
+    private static final int MAX_RECORD_LENGTH = (1 << 24) - 1;
+
+    private final Path root;
+    private final Path thumbnailDirectory;
+
+    private final List<FileChannel> segments = new CopyOnWriteArrayList<>();
+
+    // Per nameIndex: segment + 1 (8 bits) | offset of the record (32 bits) | body length (24 bits), 0 if not packed
+    private final AtomicLongArray thumbnailLocations = new AtomicLongArray(NameAllocator.TOTAL_NAMES);
+
+    // Guarded by this
+    private long currentSegmentSize;
+
+    ImageStore(final Path root) throws IOException {
+        this.root = root;
+        this.thumbnailDirectory = root.resolve("mini");
+
+        Files.createDirectories(thumbnailDirectory);
+
+        int thumbnails = 0;
+
+        for (int segment = 0; ; segment++) {
+            final Path path = segmentPath(segment);
+
+            if (!Files.exists(path)) {
+                break;
+            }
+
+            final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            segments.add(channel);
+            thumbnails += scanSegment(segment, channel);
+
+            currentSegmentSize = channel.size();
+        }
+
+        if (segments.isEmpty()) {
+            openSegment();
+        }
+
+        log.info("Image store with {} packed thumbnails in {} segments", thumbnails, segments.size());
+    }
+
+    private Path segmentPath(final int segment) {
+        return thumbnailDirectory.resolve(String.format("thumbnails-%04d.pack", segment));
+    }
+
+    private void openSegment() throws IOException {
+        if (segments.size() >= MAX_SEGMENTS) {
+            throw new IOException("Thumbnail store is full");
+        }
+
+        final Path path = segmentPath(segments.size());
+
+        segments.add(FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW));
+        currentSegmentSize = 0;
+
+        log.info("Opened thumbnail segment {}", path);
+    }
+
+    /**
+     * Indexes every complete record, a later record for the same name wins. A record torn by a crash can only be
+     * the last one, so only that one has its checksum verified, and it is cut off if it does not match.
+     */
+    private int scanSegment(final int segment, final FileChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        final long size = channel.size();
+
+        long position = 0;
+        int records = 0;
+
+        while (position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+
+            final int encodedName = header.getInt();
+            final int length = header.getInt();
+            final String name = NameAllocator.decodeWord(encodedName);
+
+            if (!NameAllocator.isValidWord(name) || length < 0 || length > MAX_RECORD_LENGTH || position + RECORD_HEADER_SIZE + length > size) {
+                break;
+            }
+
+            if (position + RECORD_HEADER_SIZE + length == size) {
+                final ByteBuffer body = ByteBuffer.allocate(length);
+                readFully(channel, body, position + RECORD_HEADER_SIZE);
+
+                if (crc(body.array()) != header.getInt(16)) {
+                    break;
+                }
+            }
+
+            thumbnailLocations.set(NameAllocator.nameIndex(encodedName), length > 0 ? location(segment, position, length) : 0);
+
+            position += RECORD_HEADER_SIZE + length;
+            records++;
+        }
+
+        if (position < size) {
+            log.warn("Truncating {} trailing bytes of thumbnail segment {}", size - position, segment);
+
+            channel.truncate(position);
+        }
+
+        return records;
+    }
+
+    private static int crc(final byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+
+        return (int) crc.getValue();
+    }
+
+    private static long location(final int segment, final long offset, final int length) {
+        return (long) (segment + 1) << 56 | offset << 24 | length;
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+
+            if (read < 0) {
+                throw new EOFException("Thumbnail segment was truncated");
+            }
+
+            position += read;
+        }
+    }
+
+    private Path shardedImagePath(final String name) {
+        return root.resolve(name.substring(0, 2)).resolve(name + ".jpg");
+    }
+
+    /**
+     * @return full image file or null if there is none
+     */
+    File findImage(final String name) {
+        final File sharded = shardedImagePath(name).toFile();
+
+        if (sharded.exists()) {
+            return sharded;
+        }
+
+        final File flat = root.resolve(name + ".jpg").toFile();
+
+        return flat.exists() ? flat : null;
+    }
+
+    /**
+     * Written aside, synced and moved in place, so a crash never leaves a partial image under the name.
+     */
+    void writeImage(final String name, final byte[] data) throws IOException {
+        final Path path = shardedImagePath(name);
+
+        Files.createDirectories(path.getParent());
+
+        final Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        final ByteBuffer contents = ByteBuffer.wrap(data);
+
+        try (final FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (contents.hasRemaining()) {
+                channel.write(contents);
+            }
+
+            channel.force(true);
+        }
+
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Hard links a file which is already synced into place, or copies and syncs it where links are not supported.
+     * The original stays where it is, so the upload can still be recovered from it until it is recorded.
+     */
+    void linkImage(final String name, final Path original) throws IOException {
+        final Path path = shardedImagePath(name);
+
+        Files.createDirectories(path.getParent());
+
+        final Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+        Files.deleteIfExists(temporary);
+
+        try {
+            Files.createLink(temporary, original);
+        } catch (final UnsupportedOperationException | FileSystemException e) {
+            Files.copy(original, temporary, StandardCopyOption.REPLACE_EXISTING);
+
+            try (final FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+        }
+
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Removes the full image of a name which is not going to be published.
+     */
+    void deleteImage(final String name) throws IOException {
+        Files.deleteIfExists(shardedImagePath(name));
+    }
+
+    synchronized void writeThumbnail(final String name, final byte[] data) throws IOException {
+        if (data.length == 0) {
+            throw new IOException("Thumbnail of " + name + " is empty");
+        }
+
+        appendThumbnail(name, data);
+    }
+
+    /**
+     * Appends an empty record, so the thumbnail stays removed after a restart too.
+     */
+    synchronized void deleteThumbnail(final String name) throws IOException {
+        if (thumbnailLocations.get(NameAllocator.nameIndex(NameAllocator.encodeWord(name))) != 0) {
+            appendThumbnail(name, new byte[0]);
+        }
+    }
+
+    private void appendThumbnail(final String name, final byte[] data) throws IOException {
+        if (data.length > MAX_RECORD_LENGTH) {
+            throw new IOException("Thumbnail of " + byteCountToDisplaySize(data.length) + " is too large");
+        }
+
+        if (currentSegmentSize + RECORD_HEADER_SIZE + data.length > SEGMENT_SIZE) {
+            openSegment();
+        }
+
+        final int segment = segments.size() - 1;
+        final FileChannel channel = segments.get(segment);
+        final long offset = currentSegmentSize;
+
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + data.length);
+        record.putInt(NameAllocator.encodeWord(name));
+        record.putInt(data.length);
+        record.putLong(System.currentTimeMillis());
+        record.putInt(crc(data));
+        record.put(data);
+        record.flip();
+
+        long position = offset;
+
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+
+        channel.force(false);
+
+        currentSegmentSize = position;
+        thumbnailLocations.set(NameAllocator.nameIndex(NameAllocator.encodeWord(name)), data.length > 0 ? location(segment, offset, data.length) : 0);
+    }
+
+    /**
+     * Positional read of a packed thumbnail, safe to call from any number of threads.
+     *
+     * @return thumbnail or null if it is not packed
+     */
+    ImageCache.Entry readThumbnail(final String name) throws IOException {
+        final long location = thumbnailLocations.get(NameAllocator.nameIndex(NameAllocator.encodeWord(name)));
+
+        if (location == 0) {
+            return null;
+        }
+
+        final int segment = (int) (location >>> 56) - 1;
+        final long offset = (location >>> 24) & 0xffffffffL;
+        final int length = (int) (location & 0xffffff);
+
+        final FileChannel channel = segments.get(segment);
+
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(channel, header, offset);
+
+        final byte[] contents = new byte[length];
+        readFully(channel, ByteBuffer.wrap(contents), offset + RECORD_HEADER_SIZE);
+
+        return new ImageCache.Entry(contents, header.getLong(8));
+    }
+
+    /**
+     * @return thumbnail file of the flat layout or null if there is none
+     */
+    File findLegacyThumbnail(final String name) {
+        final File flat = thumbnailDirectory.resolve(name + ".jpg").toFile();
+
+        return flat.exists() ? flat : null;
+    }
+}
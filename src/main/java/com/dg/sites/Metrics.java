@@ -0,0 +1,217 @@
+package com.dg.sites;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and latency histograms rendered in the Prometheus text format.
+ * Metrics are registered once at startup, recording only touches LongAdders, so it never blocks or allocates.
+ *
+ * @author doc
+ */
+class Metrics {
+    /**
+     * Log-linear buckets in the spirit of HdrHistogram, two per power of two from 16 microseconds to 67 seconds,
+     * so the relative error stays below 50 % over the whole range.
+     */
+    static class Histogram {
+        private static final long[] BOUNDS_MICROS = bounds();
+
+        // One more for everything above the last bound
+        private final LongAdder[] counts = new LongAdder[BOUNDS_MICROS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        private static long[] bounds() {
+            final List<Long> bounds = new ArrayList<>();
+
+            for (int power = 4; power < 26; power++) {
+                bounds.add(1L << power);
+                bounds.add(3L << (power - 1));
+            }
+
+            bounds.add(1L << 26);
+
+            return bounds.stream().mapToLong(Long::longValue).toArray();
+        }
+
+        void record(final long nanos) {
+            final int index = Arrays.binarySearch(BOUNDS_MICROS, TimeUnit.NANOSECONDS.toMicros(nanos));
+
+            // Bounds are inclusive, a miss gives the first larger bound
+            counts[index >= 0 ? index : -index - 1].increment();
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * Records the time since a {@link System#nanoTime()} taken before.
+         */
+        void recordSince(final long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        private void write(final StringBuilder text, final String name, final String labels) {
+            long cumulative = 0;
+
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i].sum();
+
+                final String bound = i < BOUNDS_MICROS.length ? Double.toString(BOUNDS_MICROS[i] / 1e6) : "+Inf";
+
+                text.append(name).append("_bucket{").append(labels).append(labels.isEmpty() ? "" : ",")
+                        .append("le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+            }
+
+            // Count is taken from the buckets, so the two agree even while requests are recorded
+            text.append(name).append("_sum").append(braces(labels)).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+            text.append(name).append("_count").append(braces(labels)).append(' ').append(cumulative).append('\n');
+        }
+    }
+
+    private interface Sample {
+        void write(StringBuilder text, String name);
+    }
+
+    private static class Family {
+        private final String help;
+        private final String type;
+        private final List<Sample> samples = new ArrayList<>();
+
+        private Family(final String help, final String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    // Shared with the views from withLabels, guarded by itself
+    private final Map<String, Family> families;
+
+    // Added to every sample registered through this instance
+    private final String[] constantLabels;
+
+    Metrics() {
+        this(new LinkedHashMap<>(), new String[0]);
+    }
+
+    private Metrics(final Map<String, Family> families, final String[] constantLabels) {
+        this.families = families;
+        this.constantLabels = constantLabels;
+    }
+
+    /**
+     * View which registers into the same families with the labels added, for what exists once per site.
+     *
+     * @param labels name and value pairs
+     */
+    Metrics withLabels(final String... labels) {
+        return new Metrics(families, concat(constantLabels, labels));
+    }
+
+    /**
+     * @param labels name and value pairs
+     */
+    Histogram histogram(final String name, final String help, final String... labels) {
+        final Histogram histogram = new Histogram();
+        final String labelText = labels(labels);
+
+        register(name, help, "histogram", (text, family) -> histogram.write(text, family, labelText));
+
+        return histogram;
+    }
+
+    LongAdder counter(final String name, final String help, final String... labels) {
+        final LongAdder counter = new LongAdder();
+
+        counter(name, help, counter::sum, labels);
+
+        return counter;
+    }
+
+    /**
+     * Counter kept elsewhere, the value has to be monotonic.
+     */
+    void counter(final String name, final String help, final LongSupplier value, final String... labels) {
+        sample(name, help, "counter", value, labels);
+    }
+
+    void gauge(final String name, final String help, final LongSupplier value, final String... labels) {
+        sample(name, help, "gauge", value, labels);
+    }
+
+    private void sample(final String name, final String help, final String type, final LongSupplier value, final String... labels) {
+        final String labelText = braces(labels(labels));
+
+        register(name, help, type, (text, family) -> text.append(family).append(labelText).append(' ').append(value.getAsLong()).append('\n'));
+    }
+
+    private void register(final String name, final String help, final String type, final Sample sample) {
+        synchronized (families) {
+            final Family family = families.computeIfAbsent(name, ignored -> new Family(help, type));
+
+            if (!family.type.equals(type)) {
+                throw new IllegalArgumentException(name + " is already registered as " + family.type);
+            }
+
+            family.samples.add(sample);
+        }
+    }
+
+    String toPrometheus() {
+        final StringBuilder text = new StringBuilder();
+
+        synchronized (families) {
+            for (final Map.Entry<String, Family> entry : families.entrySet()) {
+                final String name = entry.getKey();
+                final Family family = entry.getValue();
+
+                text.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+                text.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+
+                for (final Sample sample : family.samples) {
+                    sample.write(text, name);
+                }
+            }
+        }
+
+        return text.toString();
+    }
+
+    private String labels(final String... labels) {
+        final StringBuilder text = new StringBuilder();
+        final String[] all = concat(constantLabels, labels);
+
+        for (int i = 0; i + 1 < all.length; i += 2) {
+            if (text.length() > 0) {
+                text.append(',');
+            }
+
+            text.append(all[i]).append("=\"")
+                    .append(all[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+
+        return text.toString();
+    }
+
+    private static String[] concat(final String[] first, final String[] second) {
+        final String[] all = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, all, first.length, second.length);
+
+        return all;
+    }
+
+    private static String braces(final String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+}
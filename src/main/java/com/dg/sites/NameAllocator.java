@@ -0,0 +1,406 @@
+package com.dg.sites;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out image names by walking a shuffled table of all possible names with an atomic cursor.
+ * The table is shuffled once and kept in a memory-mapped file together with the cursor, so a restart maps it
+ * instead of shuffling again. The cursor is checkpointed a block of names ahead, so the file is only synced once
+ * per block. Every checkpoint is also written to NAME_CURSOR, which a lost or damaged table is rebuilt from.
+ *
+ * Layout: magic, number of names, seed, checkpoint, then the encoded names in table order.
+ *
+ * @author doc
+ */
+class NameAllocator {
+    private static Logger log = LoggerFactory.getLogger(NameAllocator.class);
+
+    static final char[] VOWELS = {'a', 'e', 'y', 'u', 'i', 'o'};
+    static final char[] CONSONANTS = {'q', 'w', 'r', 't', 'p', 's', 'd', 'f', 'g', 'h', 'j', 'k', 'l', 'z', 'x', 'c', 'v', 'b', 'n', 'm'};
+
+    static final int TOTAL_NAMES = CONSONANTS.length * VOWELS.length * CONSONANTS.length * VOWELS.length * CONSONANTS.length;
+
+    private static final int[] VOWEL_INDEX = letterIndex(VOWELS);
+    private static final int[] CONSONANT_INDEX = letterIndex(CONSONANTS);
+
+    private static final int BLOCK_SIZE = 256;
+
+    private static final int MAGIC = 0x44474e54;
+    private static final int CHECKPOINT_OFFSET = 16;
+    private static final int HEADER_SIZE = 32;
+    private static final int TABLE_FILE_SIZE = HEADER_SIZE + TOTAL_NAMES * 4;
+
+    private final DataSource database;
+    private final MappedByteBuffer table;
+    private final AtomicInteger nameCursor;
+
+    // Cursor positions below the checkpoint are persisted as used, so they are never handed out again after a restart
+    private volatile int checkpoint;
+
+    // Covers names taken before the allocator existed, which can come up again in the table
+    private final PublishedNames publishedNames;
+
+    // Names of uploads which failed before any client saw them, reused before the cursor moves on
+    private final Queue<String> releasedNames = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param tableFile created on first start, from the seed and cursor in NAME_CURSOR if the database has them
+     */
+    NameAllocator(final Path tableFile, final DataSource database, final PublishedNames publishedNames) throws IOException, SQLException {
+        this.database = database;
+        this.publishedNames = publishedNames;
+
+        try (final Connection connection = database.getConnection();
+             final Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS NAME_CURSOR (SEED BIGINT NOT NULL, NEXT_INDEX INT NOT NULL)");
+        }
+
+        MappedByteBuffer mapped = map(tableFile);
+
+        if (mapped == null) {
+            createTable(tableFile, database);
+            mapped = map(tableFile);
+
+            if (mapped == null) {
+                throw new IOException("Name table " + tableFile + " could not be created");
+            }
+        }
+
+        table = mapped;
+        checkpoint = Math.max(table.getInt(CHECKPOINT_OFFSET), storedCheckpoint(database, table.getLong(8)));
+        nameCursor = new AtomicInteger(checkpoint);
+
+        writeCheckpoint(checkpoint);
+
+        log.info("Name cursor at {} of {}", nameCursor.get(), TOTAL_NAMES);
+    }
+
+    /**
+     * @return mapped table or null if there is no complete table
+     */
+    private static MappedByteBuffer map(final Path tableFile) throws IOException {
+        if (!Files.exists(tableFile)) {
+            return null;
+        }
+
+        try (final FileChannel channel = FileChannel.open(tableFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() != TABLE_FILE_SIZE) {
+                log.warn("Name table {} has {} bytes instead of {}, rebuilding it", tableFile, channel.size(), TABLE_FILE_SIZE);
+
+                return null;
+            }
+
+            // The mapping stays valid after the channel is closed
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, TABLE_FILE_SIZE);
+
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != TOTAL_NAMES) {
+                log.warn("Name table {} has an unknown header, rebuilding it", tableFile);
+
+                return null;
+            }
+
+            return mapped;
+        }
+    }
+
+    /**
+     * Continues where NAME_CURSOR left off, which is past every name handed out with a table of the same seed.
+     */
+    private static void createTable(final Path tableFile, final DataSource database) throws IOException, SQLException {
+        long seed = new Random().nextLong();
+        int cursor = 0;
+
+        try (final Connection connection = database.getConnection();
+             final ResultSet result = connection.createStatement().executeQuery("SELECT SEED, NEXT_INDEX FROM NAME_CURSOR")) {
+            if (result.next()) {
+                seed = result.getLong("SEED");
+                cursor = result.getInt("NEXT_INDEX");
+            }
+        }
+
+        final ByteBuffer contents = ByteBuffer.allocate(TABLE_FILE_SIZE);
+        contents.putInt(MAGIC);
+        contents.putInt(TOTAL_NAMES);
+        contents.putLong(seed);
+        contents.putInt(cursor);
+        contents.position(HEADER_SIZE);
+
+        for (final int encoded : generateAllPossibleFileNames(seed)) {
+            contents.putInt(encoded);
+        }
+
+        contents.flip();
+
+        // Written aside and moved in place, so a crash never leaves a partial table behind
+        final Path temporary = tableFile.resolveSibling(tableFile.getFileName() + ".tmp");
+
+        try (final FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (contents.hasRemaining()) {
+                channel.write(contents);
+            }
+
+            channel.force(true);
+        }
+
+        Files.move(temporary, tableFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        log.info("Created name table {} at cursor {}", tableFile, cursor);
+    }
+
+    /**
+     * Hands out a name given back with {@link #release(String)} first. Any other name is returned only once,
+     * across restarts too.
+     */
+    String allocate() {
+        final String released = releasedNames.poll();
+
+        if (released != null) {
+            return released;
+        }
+
+        while (true) {
+            final int position = nameCursor.getAndIncrement();
+
+            if (position >= TOTAL_NAMES) {
+                throw new IllegalStateException("All names are taken");
+            }
+
+            if (position >= checkpoint) {
+                advanceCheckpoint(position);
+            }
+
+            final int encoded = table.getInt(HEADER_SIZE + position * 4);
+
+            if (!publishedNames.contains(nameIndex(encoded))) {
+                return decodeWord(encoded);
+            }
+        }
+    }
+
+    /**
+     * Makes a name available again until the next restart. Only for names which no client has been told yet, a name
+     * which was answered stays used even if its upload fails later.
+     */
+    void release(final String name) {
+        releasedNames.add(name);
+    }
+
+    /**
+     * @return checkpoint in NAME_CURSOR for a table with the seed, 0 if there is none
+     * @throws IOException if NAME_CURSOR belongs to a table shuffled with another seed, its names can't be told apart
+     */
+    private static int storedCheckpoint(final DataSource database, final long seed) throws IOException, SQLException {
+        try (final Connection connection = database.getConnection();
+             final ResultSet result = connection.createStatement().executeQuery("SELECT SEED, NEXT_INDEX FROM NAME_CURSOR")) {
+            if (!result.next()) {
+                return 0;
+            }
+
+            if (result.getLong("SEED") != seed) {
+                throw new IOException("Name table was shuffled with another seed than NAME_CURSOR, refusing to hand out names");
+            }
+
+            return result.getInt("NEXT_INDEX");
+        }
+    }
+
+    private void writeCheckpoint(final int newCheckpoint) throws SQLException {
+        try (final Connection connection = database.getConnection()) {
+            try (final PreparedStatement update = connection.prepareStatement("UPDATE NAME_CURSOR SET NEXT_INDEX = ?")) {
+                update.setInt(1, newCheckpoint);
+
+                if (update.executeUpdate() > 0) {
+                    return;
+                }
+            }
+
+            try (final PreparedStatement insert = connection.prepareStatement("INSERT INTO NAME_CURSOR (SEED, NEXT_INDEX) VALUES (?, ?)")) {
+                insert.setLong(1, table.getLong(8));
+                insert.setInt(2, newCheckpoint);
+                insert.executeUpdate();
+            }
+        }
+    }
+
+    int getCursor() {
+        return nameCursor.get();
+    }
+
+    private synchronized void advanceCheckpoint(final int position) {
+        if (position < checkpoint) {
+            return;
+        }
+
+        final int newCheckpoint = Math.min(position + BLOCK_SIZE, TOTAL_NAMES);
+
+        // Before the table, so a table rebuilt from the database never starts behind a name which was handed out
+        try {
+            writeCheckpoint(newCheckpoint);
+        } catch (final SQLException e) {
+            throw new IllegalStateException("Unable to checkpoint the name cursor", e);
+        }
+
+        // A single aligned int, so a crash leaves either the old or the new checkpoint. Synced before any name
+        // past the old one is handed out, the header page is the only one which is ever dirty.
+        table.putInt(CHECKPOINT_OFFSET, newCheckpoint);
+        table.force();
+
+        checkpoint = newCheckpoint;
+    }
+
+    private static int[] letterIndex(final char[] letters) {
+        final int[] index = new int[26];
+        Arrays.fill(index, -1);
+
+        for (int i = 0; i < letters.length; i++) {
+            index[letters[i] - 'a'] = i;
+        }
+
+        return index;
+    }
+
+    private static void shuffleArray(int[] array, final Random random) {
+        int index, temp;
+        for (int i = array.length - 1; i > 0; i--) {
+            index = random.nextInt(i + 1);
+            temp = array[index];
+            array[index] = array[i];
+            array[i] = temp;
+        }
+    }
+
+    private static int[] generateAllPossibleFileNames(final long seed) {
+        int index = 0;
+
+        final int[] product = new int[TOTAL_NAMES];
+
+        for (final char c1 : CONSONANTS) {
+            for (final char c2 : VOWELS) {
+                for (final char c3 : CONSONANTS) {
+                    for (final char c4 : VOWELS) {
+                        for (final char c5 : CONSONANTS) {
+                            product[index++] = encode(c1, c2, c3, c4, c5);
+                        }
+                    }
+                }
+            }
+        }
+
+        shuffleArray(product, new Random(seed));
+
+        return product;
+    }
+
+    static int encode(final char c1, final char c2, final char c3, final char c4, final char c5) {
+        // 6 bits per char
+        return (c1 - 'a') << 26 |
+                (c2 - 'a') << 20 |
+                (c3 - 'a') << 14 |
+                (c4 - 'a') << 8 |
+                (c5 - 'a') << 2;
+    }
+
+    static int encodeWord(final String word) {
+        return encode(word.charAt(0), word.charAt(1), word.charAt(2), word.charAt(3), word.charAt(4));
+    }
+
+    static boolean isValidWord(final String word) {
+        if (word == null || word.length() != 5) {
+            return false;
+        }
+
+        for (int index = 0; index < 5; index++) {
+            final char c = word.charAt(index);
+            final int[] letterIndex = index % 2 == 0 ? CONSONANT_INDEX : VOWEL_INDEX;
+
+            if (c < 'a' || c > 'z' || letterIndex[c - 'a'] == -1) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Matches an image request path, /kaqen or /kaqen.mini, letter by letter without allocating.
+     *
+     * @return nameIndex of the name shifted left by one, with the lowest bit set for a thumbnail,
+     * or -1 if the path is not an image path
+     */
+    static int parseImagePath(final String path) {
+        final int length = path.length();
+
+        if (length != 6 && (length != 11 || !path.startsWith(".mini", 6)) || path.charAt(0) != '/') {
+            return -1;
+        }
+
+        int nameIndex = 0;
+
+        for (int position = 1; position <= 5; position++) {
+            final char c = path.charAt(position);
+            final boolean isConsonant = position % 2 == 1;
+
+            if (c < 'a' || c > 'z') {
+                return -1;
+            }
+
+            final int letter = (isConsonant ? CONSONANT_INDEX : VOWEL_INDEX)[c - 'a'];
+
+            if (letter == -1) {
+                return -1;
+            }
+
+            nameIndex = nameIndex * (isConsonant ? CONSONANTS.length : VOWELS.length) + letter;
+        }
+
+        return nameIndex << 1 | (length == 11 ? 1 : 0);
+    }
+
+    static String decodeWord(final int encoded) {
+        // Only using 6 bits
+        final int mask = 0b00000000000000000000000000111111;
+        final char c1 = (char) (((encoded >> 26) & mask) + 'a');
+        final char c2 = (char) (((encoded >> 20) & mask) + 'a');
+        final char c3 = (char) (((encoded >> 14) & mask) + 'a');
+        final char c4 = (char) (((encoded >> 8)  & mask) + 'a');
+        final char c5 = (char) (((encoded >> 2)  & mask) + 'a');
+
+        return new String(new char[] { c1, c2, c3, c4, c5 });
+    }
+
+    /**
+     * Dense index of an encoded name in [0, TOTAL_NAMES), the position it had before the shuffle.
+     */
+    static int nameIndex(final int encoded) {
+        final int mask = 0b00000000000000000000000000111111;
+
+        final int c1 = CONSONANT_INDEX[(encoded >> 26) & mask];
+        final int c2 = VOWEL_INDEX[(encoded >> 20) & mask];
+        final int c3 = CONSONANT_INDEX[(encoded >> 14) & mask];
+        final int c4 = VOWEL_INDEX[(encoded >> 8) & mask];
+        final int c5 = CONSONANT_INDEX[(encoded >> 2) & mask];
+
+        return (((c1 * VOWELS.length + c2) * CONSONANTS.length + c3) * VOWELS.length + c4) * CONSONANTS.length + c5;
+    }
+}
@@ -0,0 +1,63 @@
+package com.dg.sites;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * One bit per possible name, set once an image under that name is stored. Lets requests for names nobody
+ * uploaded be answered without touching the disk. 288k names fit in 36 KB.
+ *
+ * @author doc
+ */
+class PublishedNames {
+    private static Logger log = LoggerFactory.getLogger(PublishedNames.class);
+
+    private final AtomicLongArray bits = new AtomicLongArray((NameAllocator.TOTAL_NAMES + 63) / 64);
+
+    PublishedNames(final DataSource database) throws SQLException {
+        int count = 0;
+
+        try (final Connection connection = database.getConnection();
+             final ResultSet result = connection.createStatement().executeQuery("SELECT NAME FROM SCREENS WHERE FREE = FALSE")) {
+            while (result.next()) {
+                final String name = result.getString("NAME");
+
+                if (NameAllocator.isValidWord(name)) {
+                    add(name);
+                    count++;
+                }
+            }
+        }
+
+        log.info("{} published names", count);
+    }
+
+    /**
+     * @param name has to be a valid name
+     */
+    boolean contains(final String name) {
+        return contains(NameAllocator.nameIndex(NameAllocator.encodeWord(name)));
+    }
+
+    boolean contains(final int nameIndex) {
+        return (bits.get(nameIndex >>> 6) & 1L << nameIndex) != 0;
+    }
+
+    void add(final String name) {
+        final int nameIndex = NameAllocator.nameIndex(NameAllocator.encodeWord(name));
+        final int word = nameIndex >>> 6;
+        final long bit = 1L << nameIndex;
+
+        long current;
+
+        do {
+            current = bits.get(word);
+        } while ((current & bit) == 0 && !bits.compareAndSet(word, current, current | bit));
+    }
+}
@@ -0,0 +1,102 @@
+package com.dg.sites;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Locale;
+
+/**
+ * Connections of a pool shared by several sites, set to the schema of one of them. The schema is set again on
+ * every getConnection, because Hikari only resets it on return when the pool itself has a schema configured, so a
+ * pooled connection may still be on the schema of another site. The tables of the site are expected in its schema,
+ * it is created empty when missing.
+ *
+ * @author doc
+ */
+class SchemaDataSource implements DataSource {
+    private static Logger log = LoggerFactory.getLogger(SchemaDataSource.class);
+
+    private final DataSource pool;
+    private final String schema;
+
+    SchemaDataSource(final DataSource pool, final String siteName) throws SQLException {
+        this.pool = pool;
+        this.schema = siteName.toUpperCase(Locale.ROOT);
+
+        try (final Connection connection = pool.getConnection()) {
+            try (final ResultSet schemas = connection.getMetaData().getSchemas(null, schema)) {
+                if (schemas.next()) {
+                    return;
+                }
+            }
+
+            try (final Statement statement = connection.createStatement()) {
+                statement.execute("CREATE SCHEMA \"" + schema + "\" AUTHORIZATION DBA");
+            }
+
+            log.info("Created schema {}", schema);
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        final Connection connection = pool.getConnection();
+
+        try {
+            connection.setSchema(schema);
+        } catch (final SQLException e) {
+            connection.close();
+
+            throw e;
+        }
+
+        return connection;
+    }
+
+    @Override
+    public Connection getConnection(final String username, final String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("The pool has its own credentials");
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return pool.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(final PrintWriter out) throws SQLException {
+        pool.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(final int seconds) throws SQLException {
+        pool.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return pool.getLoginTimeout();
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return pool.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(final Class<T> iface) throws SQLException {
+        return iface.isInstance(this) ? iface.cast(this) : pool.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || pool.isWrapperFor(iface);
+    }
+}
@@ -0,0 +1,182 @@
+package com.dg.sites;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Writes SCREENS bookkeeping from a single thread. Writes queued while a batch is being committed are sent together
+ * as the next batch, in one transaction and through a prepared statement which is kept for the life of the connection.
+ * A failed batch is retried on a new connection with backoff, the merge can safely be repeated.
+ *
+ * @author doc
+ */
+class ScreensWriter {
+    private static Logger log = LoggerFactory.getLogger(ScreensWriter.class);
+
+    private static final int MAX_BATCH_SIZE = 128;
+
+    // About six seconds of retries before the writes of a batch fail
+    private static final int MAX_ATTEMPTS = 6;
+    private static final long FIRST_RETRY_DELAY_MILLIS = 200;
+
+    private static final String MARK_UPLOADED =
+            "merge into screens using(values(?)) \n" +
+                    "as vars(name)\n" +
+                    "on screens.name = vars.name\n" +
+                    "when matched then\n" +
+                    "update set uploaded = NOW(), free = FALSE\n" +
+                    "when not matched then\n" +
+                    "insert values vars.name, NOW(), 0, NULL, FALSE";
+
+    private static class Write {
+        private final String name;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private Write(final String name) {
+            this.name = name;
+        }
+    }
+
+    private final DataSource database;
+    private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+
+    private final Metrics.Histogram batchTime;
+
+    private Connection connection;
+    private PreparedStatement markUploaded;
+
+    ScreensWriter(final DataSource database, final Metrics.Histogram batchTime) {
+        this.database = database;
+        this.batchTime = batchTime;
+
+        final Thread thread = new Thread(this::run, "Screens writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return future completed once the row is committed
+     */
+    CompletableFuture<Void> markUploaded(final String name) {
+        final Write write = new Write(name);
+
+        queue.add(write);
+
+        return write.done;
+    }
+
+    private void run() {
+        final List<Write> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (final InterruptedException e) {
+                return;
+            }
+
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+            final long start = System.nanoTime();
+
+            try {
+                executeWithRetries(batch);
+                batchTime.recordSince(start);
+
+                for (final Write write : batch) {
+                    write.done.complete(null);
+                }
+
+                if (batch.size() > 1) {
+                    log.debug("Committed {} screens in one batch", batch.size());
+                }
+            } catch (final SQLException | InterruptedException e) {
+                log.error("Unable to write a batch of {} screens", batch.size(), e);
+
+                for (final Write write : batch) {
+                    write.done.completeExceptionally(e);
+                }
+
+                if (e instanceof InterruptedException) {
+                    return;
+                }
+            }
+
+            batch.clear();
+        }
+    }
+
+    private void executeWithRetries(final List<Write> batch) throws SQLException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                execute(batch);
+
+                return;
+            } catch (final SQLException e) {
+                closeConnection();
+
+                if (attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+
+                final long delayMillis = FIRST_RETRY_DELAY_MILLIS << (attempt - 1);
+
+                log.warn("Unable to write a batch of {} screens, retrying in {} ms: {}", batch.size(), delayMillis, e.toString());
+
+                Thread.sleep(delayMillis);
+            }
+        }
+    }
+
+    private void execute(final List<Write> batch) throws SQLException {
+        if (connection == null) {
+            connection = database.getConnection();
+            connection.setAutoCommit(false);
+            markUploaded = connection.prepareStatement(MARK_UPLOADED);
+        }
+
+        try {
+            for (final Write write : batch) {
+                markUploaded.setString(1, write.name);
+                markUploaded.addBatch();
+            }
+
+            markUploaded.executeBatch();
+            connection.commit();
+        } catch (final SQLException e) {
+            try {
+                markUploaded.clearBatch();
+                connection.rollback();
+            } catch (final SQLException rollbackError) {
+                e.addSuppressed(rollbackError);
+            }
+
+            throw e;
+        }
+    }
+
+    private void closeConnection() {
+        if (connection == null) {
+            return;
+        }
+
+        try {
+            connection.close();
+        } catch (final SQLException e) {
+            log.error("Unable to close screens writer connection", e);
+        }
+
+        connection = null;
+        markUploaded = null;
+    }
+}
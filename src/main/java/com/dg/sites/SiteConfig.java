@@ -0,0 +1,101 @@
+package com.dg.sites;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * One site of the process: its name, the hosts it answers and its home, which holds the database, static and scr
+ * directories. A sites file lists them like this:
+ *
+ * <pre>
+ * sites = dgpic, other
+ * site.dgpic.hosts = dg-pic.tk, www.dg-pic.tk
+ * site.dgpic.home = /srv/dg-pic
+ * site.other.hosts = pics.example.org
+ * site.other.home = /srv/other
+ * </pre>
+ *
+ * @author doc
+ */
+public class SiteConfig {
+    // Also the schema of the site in a shared database and the site label of its metrics
+    private static final Pattern NAME_PATTERN = Pattern.compile("[a-z][a-z0-9_]{0,31}");
+
+    private final String name;
+    private final Path home;
+    private final List<String> hosts;
+
+    /**
+     * @param hosts names in the Host header, none for a site which only serves as the default one
+     */
+    public SiteConfig(final String name, final Path home, final List<String> hosts) {
+        if (!NAME_PATTERN.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid site name: " + name);
+        }
+
+        this.name = name;
+        this.home = home;
+        this.hosts = new ArrayList<>();
+
+        for (final String host : hosts) {
+            this.hosts.add(host.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    public static List<SiteConfig> load(final Properties properties) {
+        final List<SiteConfig> sites = new ArrayList<>();
+
+        for (final String name : split(properties.getProperty("sites", ""))) {
+            final String home = properties.getProperty("site." + name + ".home");
+
+            if (home == null) {
+                throw new IllegalArgumentException("site." + name + ".home is missing");
+            }
+
+            sites.add(new SiteConfig(name, Paths.get(home.trim()), split(properties.getProperty("site." + name + ".hosts", ""))));
+        }
+
+        if (sites.isEmpty()) {
+            throw new IllegalArgumentException("No sites configured");
+        }
+
+        return sites;
+    }
+
+    private static List<String> split(final String list) {
+        final List<String> values = new ArrayList<>();
+
+        for (final String value : list.split(",")) {
+            if (!value.trim().isEmpty()) {
+                values.add(value.trim());
+            }
+        }
+
+        return values;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Path getHome() {
+        return home;
+    }
+
+    public List<String> getHosts() {
+        return Collections.unmodifiableList(hosts);
+    }
+
+    /**
+     * @return first of the hosts, which links to the site are made with, or null if it has none
+     */
+    public String getPrimaryHost() {
+        return hosts.isEmpty() ? null : hosts.get(0);
+    }
+}
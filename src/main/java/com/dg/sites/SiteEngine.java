@@ -0,0 +1,314 @@
+package com.dg.sites;
+
+import com.zaxxer.hikari.HikariDataSource;
+import net.freeutils.httpserver.HTTPServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hosts several sites in one process. They share the connection threads, the image caches, the bulkheads and the
+ * metrics endpoint, and optionally one database pool, where each site has its own schema.
+ *
+ * jlhttp picks a virtual host by building a URL of every request. Here every route is registered once on its
+ * default host instead and dispatches on the Host header, which is looked up as it is in a table of all configured
+ * names.
+ *
+ * @author doc
+ */
+public class SiteEngine {
+    private static Logger log = LoggerFactory.getLogger(SiteEngine.class);
+
+    private final HTTPServer server;
+    private final List<SiteConfig> sites;
+    private final HostTable hosts;
+
+    // Index of the site for unknown hosts, -1 to answer them with 404
+    private final int defaultSite;
+
+    private final Metrics metrics = new Metrics();
+
+    private final ImageCache imageCache;
+    private final ImageCache thumbnailCache;
+
+    // Image reads and uploads can't hold every connection thread, whatever the other one is doing
+    private final Bulkhead imageBulkhead = new Bulkhead("image", Integer.getInteger("dgpic.imageConcurrency", 64), Long.getLong("dgpic.bulkheadWaitMillis", 1000));
+    private final Bulkhead uploadBulkhead = new Bulkhead("upload", Integer.getInteger("dgpic.uploadConcurrency", 16), Long.getLong("dgpic.bulkheadWaitMillis", 1000));
+
+    // Null when every site opens the database in its home
+    private final HikariDataSource sharedDatabase;
+
+    // Keyed by method and context path, guarded by this while sites register their routes
+    private final Map<String, Dispatcher> dispatchers = new HashMap<>();
+
+    private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "Site engine maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * One handler per site for a route, every site registers the same routes.
+     */
+    private class Dispatcher implements HTTPServer.ContextHandler {
+        private final AtomicReferenceArray<HTTPServer.ContextHandler> handlers = new AtomicReferenceArray<>(sites.size());
+
+        @Override
+        public int serve(final HTTPServer.Request req, final HTTPServer.Response res) throws IOException {
+            final int site = hosts.find(req.getHeaders().get("Host"), defaultSite);
+            final HTTPServer.ContextHandler handler = site >= 0 ? handlers.get(site) : null;
+
+            return handler != null ? handler.serve(req, res) : 404;
+        }
+    }
+
+    /**
+     * @param executor executor of the server, only watched for metrics
+     * @param defaultSite name of the site for requests to hosts which aren't configured, null to answer them with 404
+     * @param sharedDatabase database for every site, null for one in the home of each site
+     */
+    public SiteEngine(final HTTPServer server, final ConnectionExecutor executor, final List<SiteConfig> sites, final String defaultSite, final Path sharedDatabase) {
+        this.server = server;
+        this.sites = new ArrayList<>(sites);
+
+        final Map<String, Integer> sitesByHost = new HashMap<>();
+        int defaultIndex = -1;
+
+        for (int index = 0; index < sites.size(); index++) {
+            final SiteConfig site = sites.get(index);
+
+            for (final String host : site.getHosts()) {
+                if (sitesByHost.put(host, index) != null) {
+                    throw new IllegalArgumentException("Host " + host + " belongs to more than one site");
+                }
+            }
+
+            if (site.getName().equals(defaultSite)) {
+                defaultIndex = index;
+            }
+        }
+
+        if (defaultSite != null && defaultIndex == -1) {
+            throw new IllegalArgumentException("Unknown default site: " + defaultSite);
+        }
+
+        this.hosts = new HostTable(sitesByHost);
+        this.defaultSite = defaultIndex;
+
+        // Shared, so the budget holds for the whole process
+        final int keys = sites.size() * NameAllocator.TOTAL_NAMES;
+
+        imageCache = new ImageCache("images", Long.getLong("dgpic.imageCacheSize", 64 * 1024 * 1024), keys);
+        thumbnailCache = new ImageCache("thumbnails", Long.getLong("dgpic.thumbnailCacheSize", 16 * 1024 * 1024), keys);
+
+        if (sharedDatabase != null) {
+            this.sharedDatabase = DgPic.openPool(sharedDatabase, Integer.getInteger("dgpic.poolSize", 4 * sites.size()));
+
+            DgPic.registerPoolMetrics(metrics, this.sharedDatabase);
+        } else {
+            this.sharedDatabase = null;
+        }
+
+        registerExecutorMetrics(executor);
+        registerCacheMetrics(imageCache);
+        registerCacheMetrics(thumbnailCache);
+        registerBulkheadMetrics(imageBulkhead);
+        registerBulkheadMetrics(uploadBulkhead);
+
+        log.info("{} sites, default site: {}", sites.size(), defaultSite);
+    }
+
+    /**
+     * Starts every site at once. The server starts listening as soon as all of them have registered their routes,
+     * requests wait for their site to become ready from then on.
+     *
+     * Returns when every site is ready or failed, a site which failed answers with 503.
+     */
+    public void ignite() throws IOException {
+        final long start = System.nanoTime();
+
+        final ExecutorService ignition = Executors.newFixedThreadPool(sites.size(), runnable -> {
+            final Thread thread = new Thread(runnable, "Site ignition");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        final List<CompletableFuture<Void>> routed = new ArrayList<>();
+        final List<CompletableFuture<Void>> ready = new ArrayList<>();
+
+        try {
+            for (int index = 0; index < sites.size(); index++) {
+                final int siteIndex = index;
+                final CompletableFuture<Void> siteRouted = new CompletableFuture<>();
+
+                routed.add(siteRouted);
+                ready.add(CompletableFuture.runAsync(() -> new DgPic(this, sites.get(siteIndex), siteIndex, () -> siteRouted.complete(null)), ignition)
+                        // A site which failed before its routes were in place must not hold back the others
+                        .whenComplete((ignored, e) -> siteRouted.complete(null)));
+            }
+
+            CompletableFuture.allOf(routed.toArray(new CompletableFuture<?>[0])).join();
+
+            server.start();
+
+            int failed = 0;
+
+            for (int index = 0; index < sites.size(); index++) {
+                try {
+                    ready.get(index).join();
+                } catch (final CompletionException e) {
+                    failed++;
+
+                    log.error("Site {} failed to start", sites.get(index).getName(), e.getCause());
+                }
+            }
+
+            if (failed == sites.size()) {
+                throw new IllegalStateException("No site started");
+            }
+        } finally {
+            ignition.shutdown();
+        }
+
+        startMetricsServer();
+
+        maintenance.scheduleAtFixedRate(() -> {
+            imageCache.logStats();
+            thumbnailCache.logStats();
+        }, 10, 10, TimeUnit.MINUTES);
+
+        log.info("Sites ready after {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Routes requests for the site to the handler, safe to call from several sites at once.
+     */
+    synchronized void addContext(final int site, final String path, final HTTPServer.ContextHandler handler, final String... methods) {
+        for (final String method : methods) {
+            dispatchers.computeIfAbsent(method + " " + path, key -> {
+                final Dispatcher dispatcher = new Dispatcher();
+
+                server.getVirtualHost(null).addContext(path, dispatcher, method);
+
+                return dispatcher;
+            }).handlers.set(site, handler);
+        }
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    ImageCache getImageCache() {
+        return imageCache;
+    }
+
+    ImageCache getThumbnailCache() {
+        return thumbnailCache;
+    }
+
+    Bulkhead getImageBulkhead() {
+        return imageBulkhead;
+    }
+
+    Bulkhead getUploadBulkhead() {
+        return uploadBulkhead;
+    }
+
+    /**
+     * @return null when every site opens the database in its home
+     */
+    DataSource getSharedDatabase() {
+        return sharedDatabase;
+    }
+
+    private void registerCacheMetrics(final ImageCache cache) {
+        final String name = cache.getName();
+
+        metrics.counter("dgpic_cache_hits_total", "Image cache hits.", cache::getHits, "cache", name);
+        metrics.counter("dgpic_cache_misses_total", "Image cache misses.", cache::getMisses, "cache", name);
+        metrics.counter("dgpic_cache_evictions_total", "Image cache evictions.", cache::getEvictions, "cache", name);
+        metrics.gauge("dgpic_cache_bytes", "Bytes held by the image cache.", cache::getUsedBytes, "cache", name);
+        metrics.gauge("dgpic_cache_entries", "Images held by the image cache.", cache::getSize, "cache", name);
+    }
+
+    private void registerExecutorMetrics(final ConnectionExecutor executor) {
+        metrics.gauge("dgpic_http_connections", "Connections being served or waiting for a thread.", executor::getConnections, "threads", executor.getMode());
+        metrics.gauge("dgpic_http_connection_limit", "Connections served at once before new ones get a 503.", executor::getMaxConnections);
+        metrics.counter("dgpic_http_connections_rejected_total", "Connections turned away right after accepting them.", executor::getRejected);
+
+        final ThreadPoolExecutor pool = executor.getPool();
+
+        if (pool != null) {
+            metrics.gauge("dgpic_http_active_threads", "Request threads busy with a connection.", pool::getActiveCount);
+            metrics.gauge("dgpic_http_pool_threads", "Request threads alive.", pool::getPoolSize);
+            metrics.gauge("dgpic_http_queued_connections", "Connections waiting for a request thread.", () -> pool.getQueue().size());
+        }
+    }
+
+    private void registerBulkheadMetrics(final Bulkhead bulkhead) {
+        metrics.gauge("dgpic_http_bulkhead_in_use", "Request threads working inside a bulkhead.", bulkhead::getInUse, "bulkhead", bulkhead.getName());
+        metrics.gauge("dgpic_http_bulkhead_limit", "Request threads a bulkhead lets in at once.", bulkhead::getLimit, "bulkhead", bulkhead.getName());
+    }
+
+    /**
+     * Metrics get their own server which only listens on the loopback interface, jlhttp does not tell handlers
+     * where a request came from, and virtual hosts only go by the Host header anyone can send.
+     */
+    private void startMetricsServer() {
+        final int port = Integer.getInteger("dgpic.metricsPort", 9180);
+
+        if (port <= 0) {
+            return;
+        }
+
+        final HTTPServer metricsServer = new HTTPServer(port) {
+            @Override
+            protected ServerSocket createServerSocket() throws IOException {
+                final ServerSocket socket = serverSocketFactory.createServerSocket();
+                socket.setReuseAddress(true);
+                socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+                return socket;
+            }
+        };
+
+        metricsServer.getVirtualHost(null).addContext("/metrics", (req, res) -> {
+            final byte[] contents = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+
+            res.getHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            res.getHeaders().add("Content-Length", String.valueOf(contents.length));
+            res.sendHeaders(200);
+            res.getOutputStream().write(contents);
+
+            return 0;
+        }, "GET");
+
+        try {
+            metricsServer.start();
+
+            log.info("Metrics on http://{}:{}/metrics", InetAddress.getLoopbackAddress().getHostAddress(), port);
+        } catch (final IOException e) {
+            log.error("Unable to start metrics server on port {}", port, e);
+        }
+    }
+}
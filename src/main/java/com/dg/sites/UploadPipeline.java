@@ -0,0 +1,750 @@
+package com.dg.sites;
+
+import com.sun.imageio.plugins.bmp.BMPImageReaderSpi;
+import com.sun.imageio.plugins.gif.GIFImageReaderSpi;
+import com.sun.imageio.plugins.jpeg.JPEGImageReaderSpi;
+import com.sun.imageio.plugins.png.PNGImageReaderSpi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.apache.commons.io.FileUtils.byteCountToDisplaySize;
+
+/**
+ * Processes uploads off the HTTP threads: decode, encode, thumbnail and persist run as separate stages on bounded
+ * pools. The HTTP thread only spools the original bytes to disk and reserves a name.
+ *
+ * @author doc
+ */
+class UploadPipeline {
+    private static Logger log = LoggerFactory.getLogger(UploadPipeline.class);
+
+    private static final int TWO_MEGABYTES = 2 * 1024 * 1024;
+
+    private static final int THUMBNAIL_WIDTH = 180;
+    private static final int THUMBNAIL_HEIGHT = 140;
+
+    // Bottom of the thumbnail is taken by the label
+    private static final int THUMBNAIL_LABEL_HEIGHT = 16;
+
+    interface Persister {
+        /**
+         * @return stage completed once the image is durably recorded. If it fails, the files are kept and the upload
+         * is processed again from its spool file after a restart.
+         */
+        CompletionStage<Void> persist(String name, byte[] imageData, byte[] thumbnailData) throws Exception;
+
+        /**
+         * Same as {@link #persist}, with the spooled upload stored as is. The file is synced and has to stay in
+         * place, the pipeline deletes it once the image is recorded.
+         */
+        CompletionStage<Void> persistOriginal(String name, Path original, byte[] thumbnailData) throws Exception;
+
+        /**
+         * Called when an upload could not be processed after its name was given out. The name must not be handed
+         * out again, whatever was written for it is removed.
+         */
+        void discard(String name);
+    }
+
+    /**
+     * Full resolution image is only decoded when the upload has to be re-encoded.
+     */
+    private static class DecodedImage {
+        private final BufferedImage image;
+        private final int width;
+        private final int height;
+
+        private DecodedImage(final BufferedImage image, final int width, final int height) {
+            this.image = image;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private static class EncodedImage {
+        private final DecodedImage decoded;
+
+        // Null when the original is stored
+        private final byte[] data;
+
+        private EncodedImage(final DecodedImage decoded, final byte[] data) {
+            this.decoded = decoded;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The files of the upload are written, only its record failed.
+     */
+    private static class NotRecordedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private NotRecordedException(final Throwable cause) {
+            super(cause);
+        }
+    }
+
+    private static class ProcessedImage {
+        // Null when the original is stored
+        private final byte[] imageData;
+        private final byte[] thumbnailData;
+
+        private ProcessedImage(final byte[] imageData, final byte[] thumbnailData) {
+            this.imageData = imageData;
+            this.thumbnailData = thumbnailData;
+        }
+    }
+
+    private final Path incomingDirectory;
+    private final long maxUploadSize;
+
+    // Printed in front of the name on thumbnails, the host of the site and a slash
+    private final String labelPrefix;
+    private final Persister persister;
+
+    // Estimated decoded pixel memory of uploads in flight, in kilobytes
+    private final Semaphore memoryBudget;
+    private final int memoryBudgetKilobytes;
+
+    // CPU bound stages, a full queue makes the submitting thread run the stage itself
+    private final ThreadPoolExecutor imageWorkers;
+    private final ThreadPoolExecutor persistWorkers;
+
+    // Names which are spooled but not yet persisted
+    private final Map<String, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+
+    // Same names by nameIndex, one bit each, so a request can check its name without building the string
+    private final AtomicLongArray pendingBits = new AtomicLongArray((NameAllocator.TOTAL_NAMES + 63) / 64);
+
+    private final ImageReaderSpi[] readers;
+
+    private final ThreadLocal<ImageCodecs> codecs;
+
+    private final Metrics.Histogram decodeTime;
+    private final Metrics.Histogram pngEncodeTime;
+    private final Metrics.Histogram jpegConvertTime;
+    private final Metrics.Histogram thumbnailTime;
+    private final Metrics.Histogram persistTime;
+
+    /**
+     * @param host shown with the name on thumbnails, null for the name alone
+     */
+    UploadPipeline(final Path incomingDirectory, final long maxUploadSize, final long memoryBudget, final String host, final Persister persister, final Metrics metrics) {
+        this.incomingDirectory = incomingDirectory;
+        this.maxUploadSize = maxUploadSize;
+        this.labelPrefix = host != null ? host + "/" : "";
+        this.persister = persister;
+
+        decodeTime = stageHistogram(metrics, "decode");
+        pngEncodeTime = stageHistogram(metrics, "png_encode");
+        jpegConvertTime = stageHistogram(metrics, "jpeg_convert");
+        thumbnailTime = stageHistogram(metrics, "thumbnail");
+        persistTime = stageHistogram(metrics, "file_write");
+        this.memoryBudgetKilobytes = (int) Math.min(Integer.MAX_VALUE, memoryBudget / 1024);
+        this.memoryBudget = new Semaphore(memoryBudgetKilobytes);
+
+        final int processors = Runtime.getRuntime().availableProcessors();
+
+        imageWorkers = boundedPool("Upload image worker", processors, processors * 2);
+        persistWorkers = boundedPool("Upload persist worker", 2, 16);
+
+        final float jpegQuality = Float.parseFloat(System.getProperty("dgpic.jpegQuality", "0.75"));
+        final int pngCompressionLevel = Integer.getInteger("dgpic.pngCompressionLevel", -1);
+
+        codecs = ThreadLocal.withInitial(() -> new ImageCodecs(jpegQuality, pngCompressionLevel));
+
+        final IIORegistry registry = IIORegistry.getDefaultInstance();
+
+        readers = new ImageReaderSpi[]{
+                registry.getServiceProviderByClass(JPEGImageReaderSpi.class),
+                registry.getServiceProviderByClass(PNGImageReaderSpi.class),
+                registry.getServiceProviderByClass(GIFImageReaderSpi.class),
+                registry.getServiceProviderByClass(BMPImageReaderSpi.class)
+        };
+
+        try {
+            Files.createDirectories(incomingDirectory);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        log.info("Upload pipeline with {} image workers and {} of pixel memory", processors, byteCountToDisplaySize(memoryBudget));
+    }
+
+    static Metrics.Histogram stageHistogram(final Metrics metrics, final String stage) {
+        return metrics.histogram("dgpic_upload_stage_duration_seconds", "Time spent in each stage of upload processing.", "stage", stage);
+    }
+
+    private static ThreadPoolExecutor boundedPool(final String name, final int threads, final int queueSize) {
+        final AtomicInteger counter = new AtomicInteger();
+
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), runnable -> {
+            final Thread thread = new Thread(runnable, name + " " + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Writes the request body to disk without syncing it, an upload which turns out to be a duplicate is deleted
+     * again right away. New content is synced with {@link #sync(Path)}.
+     *
+     * @param digest updated with every byte of the body
+     */
+    Path spool(final InputStream inputStream, final MessageDigest digest) throws IOException {
+        final Path spooled = Files.createTempFile(incomingDirectory, "upload", ".tmp");
+
+        try (final FileChannel channel = FileChannel.open(spooled, StandardOpenOption.WRITE);
+             final OutputStream out = Channels.newOutputStream(channel)) {
+            final byte[] buffer = new byte[8192];
+            long total = 0;
+            int read;
+
+            while ((read = inputStream.read(buffer)) != -1) {
+                total += read;
+
+                if (total > maxUploadSize) {
+                    throw new DgPic.InvalidInputException("Image is too large");
+                }
+
+                out.write(buffer, 0, read);
+                digest.update(buffer, 0, read);
+            }
+        } catch (final IOException | RuntimeException e) {
+            Files.deleteIfExists(spooled);
+            throw e;
+        }
+
+        return spooled;
+    }
+
+    /**
+     * Syncs a spooled upload, it survives a crash from this point on.
+     */
+    void sync(final Path spooled) throws IOException {
+        try (final FileChannel channel = FileChannel.open(spooled, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * @return reader able to decode the file or null if the format is not supported
+     */
+    ImageReaderSpi detectFormat(final Path file) throws IOException {
+        try (final ImageInputStream input = new FileImageInputStream(file.toFile())) {
+            for (final ImageReaderSpi reader : readers) {
+                if (reader.canDecodeInput(input)) {
+                    return reader;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads the dimensions from the image header and reserves the memory its decoding is going to take.
+     * Nothing is decoded before the reservation succeeds.
+     *
+     * @param waitMillis how long to wait for other uploads to free up memory
+     * @return reserved kilobytes, released once the upload leaves the pipeline
+     * @throws DgPic.OverloadedException if the memory is not available in time
+     */
+    int admit(final Path file, final ImageReaderSpi reader, final long waitMillis) throws IOException {
+        final long width;
+        final long height;
+
+        ImageReader instance = null;
+
+        try (final ImageInputStream input = new FileImageInputStream(file.toFile())) {
+            instance = codecs.get().reader(reader);
+            instance.setInput(input, true, true);
+
+            width = instance.getWidth(0);
+            height = instance.getHeight(0);
+        } finally {
+            if (instance != null) {
+                instance.reset();
+            }
+        }
+
+        final long estimatedKilobytes;
+
+        if (!isStoredAsIs(file, reader)) {
+            // Decoded raster plus the RGB copy made for JPEG conversion, 4 bytes per pixel each
+            estimatedKilobytes = width * height * 4 * 2 / 1024 + 1;
+        } else {
+            final long subsampling = thumbnailSubsampling((int) width, (int) height);
+
+            estimatedKilobytes = (width / subsampling + 1) * (height / subsampling + 1) * 4 / 1024 + 1;
+        }
+
+        if (estimatedKilobytes > memoryBudgetKilobytes) {
+            throw new DgPic.InvalidInputException("Image resolution is too large");
+        }
+
+        try {
+            if (!memoryBudget.tryAcquire((int) estimatedKilobytes, waitMillis, TimeUnit.MILLISECONDS)) {
+                log.info("Rejecting {}x{} upload, {} of pixel memory left", width, height, byteCountToDisplaySize(memoryBudget.availablePermits() * 1024L));
+
+                throw new DgPic.OverloadedException("Too many uploads in progress", 5);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new DgPic.OverloadedException("Interrupted while waiting for upload slot", 5);
+        }
+
+        return (int) estimatedKilobytes;
+    }
+
+    /**
+     * Returns memory reserved by {@link #admit} for an upload which is not going to be submitted.
+     */
+    void cancelAdmission(final int admittedKilobytes) {
+        memoryBudget.release(admittedKilobytes);
+    }
+
+    /**
+     * Claims the name for a spooled upload, fails if another upload already holds it.
+     */
+    boolean reserve(final String name) {
+        if (pending.putIfAbsent(name, new CompletableFuture<>()) != null) {
+            return false;
+        }
+
+        final int nameIndex = NameAllocator.nameIndex(NameAllocator.encodeWord(name));
+
+        pendingBits.accumulateAndGet(nameIndex >>> 6, 1L << nameIndex, (current, bit) -> current | bit);
+
+        return true;
+    }
+
+    /**
+     * Gives up the claim of {@link #reserve(String)}.
+     *
+     * @return future of the upload which held the name
+     */
+    private CompletableFuture<Void> unreserve(final String name) {
+        final int nameIndex = NameAllocator.nameIndex(NameAllocator.encodeWord(name));
+
+        pendingBits.accumulateAndGet(nameIndex >>> 6, ~(1L << nameIndex), (current, mask) -> current & mask);
+
+        return pending.remove(name);
+    }
+
+    /**
+     * Queues a spooled upload under a name claimed with {@link #reserve(String)}. The file is renamed after the image,
+     * so a restart can pick it up again.
+     */
+    void submit(final String name, final Path spooled, final ImageReaderSpi reader, final int admittedKilobytes) throws IOException {
+        final CompletableFuture<Void> done = pending.get(name);
+        final Path incoming;
+
+        try {
+            incoming = Files.move(spooled, incomingDirectory.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            memoryBudget.release(admittedKilobytes);
+            // Nothing waiting on the name may take it for a stored image, the caller releases it
+            unreserve(name).completeExceptionally(e);
+            throw e;
+        }
+
+        CompletableFuture
+                .supplyAsync(() -> decode(incoming, reader), imageWorkers)
+                .thenApplyAsync(decoded -> encode(decoded, reader), imageWorkers)
+                // Full resolution raster is not referenced after this stage
+                .thenApplyAsync(encoded -> {
+                    final long start = System.nanoTime();
+                    final byte[] thumbnailData = writePng(thumbnail(encoded.decoded, incoming, reader, name));
+
+                    thumbnailTime.recordSince(start);
+
+                    return new ProcessedImage(encoded.data, thumbnailData);
+                }, imageWorkers)
+                // Persist workers only write the files, the database rows are group committed behind them
+                .thenComposeAsync(processed -> {
+                    final long start = System.nanoTime();
+
+                    try {
+                        final CompletionStage<Void> recorded = processed.imageData == null
+                                ? persister.persistOriginal(name, incoming, processed.thumbnailData)
+                                : persister.persist(name, processed.imageData, processed.thumbnailData);
+
+                        return recorded.<Void>handle((ignored, error) -> {
+                            if (error != null) {
+                                throw new NotRecordedException(error);
+                            }
+
+                            return null;
+                        });
+                    } catch (final Exception e) {
+                        throw new CompletionException(e);
+                    } finally {
+                        // Files are written by now, the database row is timed by the screens writer
+                        persistTime.recordSince(start);
+                    }
+                }, persistWorkers)
+                .whenComplete((ignored, error) -> {
+                    final Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+
+                    if (cause instanceof NotRecordedException) {
+                        // A database problem is no reason to take back a name the client has, the spool file stays
+                        log.error("Unable to record upload {}, it is processed again after a restart", name, cause.getCause());
+                    } else {
+                        if (error != null) {
+                            log.error("Error while processing upload {}", name, error);
+
+                            persister.discard(name);
+                        }
+
+                        try {
+                            Files.deleteIfExists(incoming);
+                        } catch (final IOException e) {
+                            log.error("Unable to delete spooled upload {}", incoming, e);
+                        }
+                    }
+
+                    memoryBudget.release(admittedKilobytes);
+                    unreserve(name);
+
+                    if (error != null) {
+                        done.completeExceptionally(error);
+                    } else {
+                        done.complete(null);
+                    }
+                });
+    }
+
+    /**
+     * @return future completed once the upload leaves the pipeline, exceptionally if it failed
+     */
+    CompletableFuture<Void> processing(final String name) {
+        final CompletableFuture<Void> processing = pending.get(name);
+
+        return processing != null ? processing : CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * @return whether the name is reserved for an upload which is not persisted yet
+     */
+    boolean isPending(final int nameIndex) {
+        return (pendingBits.get(nameIndex >>> 6) & 1L << nameIndex) != 0;
+    }
+
+    /**
+     * Blocks until a pending upload is persisted, so it can be viewed right after upload returns its name.
+     */
+    void awaitProcessing(final String name, final long timeoutMillis) {
+        final CompletableFuture<Void> processing = pending.get(name);
+
+        if (processing == null) {
+            return;
+        }
+
+        try {
+            processing.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException | TimeoutException e) {
+            log.info("Upload {} is not available: {}", name, e.toString());
+        }
+    }
+
+    /**
+     * Re-queues uploads which were spooled but not persisted before the last shutdown.
+     */
+    void recover() {
+        try (final DirectoryStream<Path> files = Files.newDirectoryStream(incomingDirectory)) {
+            for (final Path file : files) {
+                final String fileName = file.getFileName().toString();
+
+                if (fileName.endsWith(".tmp")) {
+                    // Never acknowledged to the client
+                    Files.delete(file);
+                    continue;
+                }
+
+                final ImageReaderSpi reader = detectFormat(file);
+
+                if (reader == null || !reserve(fileName)) {
+                    Files.delete(file);
+                    continue;
+                }
+
+                log.info("Recovering spooled upload {}", fileName);
+
+                try {
+                    submit(fileName, file, reader, admit(file, reader, Long.MAX_VALUE));
+                } catch (final RuntimeException e) {
+                    log.error("Unable to recover spooled upload {}", fileName, e);
+
+                    unreserve(fileName).complete(null);
+                    persister.discard(fileName);
+                    Files.delete(file);
+                }
+            }
+        } catch (final IOException e) {
+            log.error("Unable to recover spooled uploads", e);
+        }
+    }
+
+    /**
+     * JPEGs and PNGs which already fit are stored byte for byte, so they are never decoded at full resolution.
+     * GIF and BMP are always converted.
+     */
+    private static boolean isStoredAsIs(final Path file, final ImageReaderSpi reader) throws IOException {
+        final boolean servableFormat = reader instanceof JPEGImageReaderSpi || reader instanceof PNGImageReaderSpi;
+
+        return servableFormat && Files.size(file) <= TWO_MEGABYTES;
+    }
+
+    private DecodedImage decode(final Path file, final ImageReaderSpi reader) {
+        ImageReader instance = null;
+
+        try (final ImageInputStream input = new FileImageInputStream(file.toFile())) {
+            instance = codecs.get().reader(reader);
+            instance.setInput(input, true, true);
+
+            if (isStoredAsIs(file, reader)) {
+                return new DecodedImage(null, instance.getWidth(0), instance.getHeight(0));
+            }
+
+            log.info("Decoding with {}", reader.getPluginClassName());
+
+            final long start = System.nanoTime();
+            final BufferedImage image = instance.read(0, instance.getDefaultReadParam());
+
+            decodeTime.recordSince(start);
+
+            log.info("Decoded image of resolution {}x{}", image.getWidth(), image.getHeight());
+
+            return new DecodedImage(image, image.getWidth(), image.getHeight());
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (instance != null) {
+                instance.reset();
+            }
+        }
+    }
+
+    private EncodedImage encode(final DecodedImage decoded, final ImageReaderSpi reader) {
+        try {
+            final BufferedImage readImage = decoded.image;
+
+            if (readImage == null) {
+                return new EncodedImage(decoded, null);
+            }
+
+            final boolean wasOriginallyJpg = reader instanceof JPEGImageReaderSpi;
+
+            if (!wasOriginallyJpg) {
+                final long start = System.nanoTime();
+                final byte[] png = codecs.get().writePng(readImage, TWO_MEGABYTES);
+
+                pngEncodeTime.recordSince(start);
+
+                if (png != null) {
+                    log.info("PNG size: {}", byteCountToDisplaySize(png.length));
+
+                    return new EncodedImage(decoded, png);
+                }
+
+                log.info("PNG is larger than {}", byteCountToDisplaySize(TWO_MEGABYTES));
+            }
+
+            final long start = System.nanoTime();
+
+            // JPG doesn't support transparency!
+            final BufferedImage jpgImage = new BufferedImage(
+                    readImage.getWidth(null),
+                    readImage.getHeight(null),
+                    BufferedImage.TYPE_INT_RGB
+            );
+
+            jpgImage.getGraphics().drawImage(readImage, 0, 0, null);
+            jpgImage.getGraphics().dispose();
+
+            final byte[] jpg = codecs.get().writeJpeg(jpgImage, TWO_MEGABYTES);
+
+            jpegConvertTime.recordSince(start);
+
+            if (jpg == null) {
+                throw new DgPic.InvalidInputException("Image is too large");
+            }
+
+            log.info("Converted to JPEG of size: {}", byteCountToDisplaySize(jpg.length));
+
+            return new EncodedImage(decoded, jpg);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Renders the thumbnail from the full resolution image when it was decoded anyway. Otherwise an embedded
+     * thumbnail or a subsampled decode, a couple times the thumbnail size, is enough.
+     */
+    private BufferedImage thumbnail(final DecodedImage decoded, final Path file, final ImageReaderSpi reader, final String name) {
+        if (decoded.image != null) {
+            return generateThumbnail(decoded.image, decoded.width, decoded.height, labelPrefix + name);
+        }
+
+        final int[] scaledSize = thumbnailScaledSize(decoded.width, decoded.height);
+
+        ImageReader instance = null;
+
+        try (final ImageInputStream input = new FileImageInputStream(file.toFile())) {
+            instance = codecs.get().reader(reader);
+            instance.setInput(input, false, false);
+
+            if (instance.getNumThumbnails(0) > 0) {
+                final BufferedImage embedded = instance.readThumbnail(0, 0);
+
+                if (isUsableThumbnail(embedded, decoded.width, decoded.height, scaledSize)) {
+                    log.info("Using embedded {}x{} thumbnail", embedded.getWidth(), embedded.getHeight());
+
+                    return generateThumbnail(embedded, decoded.width, decoded.height, labelPrefix + name);
+                }
+            }
+
+            final int subsampling = thumbnailSubsampling(decoded.width, decoded.height);
+            final ImageReadParam param = instance.getDefaultReadParam();
+
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
+            final BufferedImage subsampled = instance.read(0, param);
+
+            log.info("Decoded {}x{} for thumbnail, subsampling {}", subsampled.getWidth(), subsampled.getHeight(), subsampling);
+
+            return generateThumbnail(subsampled, decoded.width, decoded.height, labelPrefix + name);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (instance != null) {
+                instance.reset();
+            }
+        }
+    }
+
+    /**
+     * Embedded thumbnails are often smaller than ours or letterboxed to a different aspect ratio.
+     */
+    private static boolean isUsableThumbnail(final BufferedImage embedded, final int width, final int height, final int[] scaledSize) {
+        if (embedded.getWidth() < scaledSize[0] || embedded.getHeight() < scaledSize[1]) {
+            return false;
+        }
+
+        final double aspect = width / (double) height;
+        final double embeddedAspect = embedded.getWidth() / (double) embedded.getHeight();
+
+        return Math.abs(aspect - embeddedAspect) <= aspect * 0.01;
+    }
+
+    /**
+     * Size of the image area of the thumbnail, images which fit are not scaled at all.
+     */
+    private static int[] thumbnailScaledSize(final int width, final int height) {
+        final int thumbHeight = THUMBNAIL_HEIGHT - THUMBNAIL_LABEL_HEIGHT;
+        final float scale = Math.min(1.0f, Math.min(THUMBNAIL_WIDTH / (float) width, thumbHeight / (float) height));
+
+        return new int[] { Math.max(1, (int) (scale * width)), Math.max(1, (int) (scale * height)) };
+    }
+
+    /**
+     * Keeps at least twice the thumbnail resolution, so the downscaler still has pixels to filter.
+     */
+    private static int thumbnailSubsampling(final int width, final int height) {
+        final int[] scaledSize = thumbnailScaledSize(width, height);
+
+        return Math.max(1, Math.min(width / (scaledSize[0] * 2), height / (scaledSize[1] * 2)));
+    }
+
+    private byte[] writePng(final BufferedImage image) {
+        try {
+            return codecs.get().writePng(image, Integer.MAX_VALUE);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param fromImage image to render, may be a reduced version of the original
+     * @param originalWidth width of the uploaded image
+     * @param originalHeight height of the uploaded image
+     * @param label address of the image, printed in the bottom left corner
+     */
+    static BufferedImage generateThumbnail(final BufferedImage fromImage, final int originalWidth, final int originalHeight, final String label) {
+        final int maxWidth = THUMBNAIL_WIDTH;
+        final int maxHeight = THUMBNAIL_HEIGHT;
+
+        final BufferedImage thumbnail = new BufferedImage(maxWidth, maxHeight, BufferedImage.TYPE_INT_ARGB);
+
+        final Graphics2D graphics = thumbnail.createGraphics();
+
+        graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, maxWidth, maxHeight);
+
+        final int thumbWidth = maxWidth;
+        final int thumbHeight = maxHeight - THUMBNAIL_LABEL_HEIGHT;
+
+        final int[] scaledSize = thumbnailScaledSize(originalWidth, originalHeight);
+        final int targetX = (thumbWidth - scaledSize[0]) / 2;
+        final int targetY = (thumbHeight - scaledSize[1]) / 2;
+
+        if (fromImage.getWidth() == scaledSize[0] && fromImage.getHeight() == scaledSize[1]) {
+            graphics.drawImage(fromImage, targetX, targetY, null);
+        } else {
+            graphics.drawImage(Downscaler.downscale(fromImage, scaledSize[0], scaledSize[1]), targetX, targetY, null);
+        }
+
+        final Font font = new Font("arial", Font.PLAIN, 10);
+
+        graphics.setFont(font);
+        graphics.setColor(new Color(40, 40, 40));
+        graphics.fillRect(0, thumbHeight, thumbWidth, THUMBNAIL_LABEL_HEIGHT);
+
+        graphics.setColor(Color.WHITE);
+        graphics.drawString(label, 4, maxHeight - 4);
+
+        final String sizeLabel = "(" + originalWidth + "x" + originalHeight + ")";
+        final int labelWidth = graphics.getFontMetrics().stringWidth(sizeLabel);
+
+        graphics.drawString(sizeLabel, maxWidth - labelWidth - 4, maxHeight);
+        graphics.dispose();
+
+        return thumbnail;
+    }
+}
@@ -0,0 +1,286 @@
+package com.dg.sites;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory view, download and referer counters which are written behind to the database in batches, so serving
+ * an image never waits for a write.
+ *
+ * Layout: VIEWS (NAME, AMOUNT), DOWNLOADS (NAME, AMOUNT), VIEWS_BY_REFERER (REFERER, AMOUNT). Missing tables are
+ * created, existing ones are checked at startup, so a different layout fails there instead of losing every flush.
+ *
+ * @author doc
+ */
+class ViewCounters {
+    private static Logger log = LoggerFactory.getLogger(ViewCounters.class);
+
+    // Referers come from clients, distinct hosts past that are counted together
+    private static final int MAX_REFERERS = 10_000;
+    private static final String OTHER_REFERER = "other";
+
+    private static final Pattern HOST_PATTERN = Pattern.compile("[a-z0-9.-]{1,253}");
+
+    private static final String MERGE_TEMPLATE =
+            "merge into %1$s using(values(?, ?)) \n" +
+                    "as vars(id, amount)\n" +
+                    "on %1$s.%2$s = vars.id\n" +
+                    "when matched then\n" +
+                    "update set amount = %1$s.amount + vars.amount\n" +
+                    "when not matched then\n" +
+                    "insert (%2$s, AMOUNT) values vars.id, vars.amount";
+
+    /**
+     * Total since startup, only the part above {@code flushed} still has to be written.
+     */
+    private static class Counter {
+        private final LongAdder total = new LongAdder();
+
+        // Only touched by the flushing thread
+        private long flushed;
+
+        long get() {
+            return total.sum();
+        }
+    }
+
+    private final DataSource database;
+
+    private final Map<String, Counter> views = new ConcurrentHashMap<>();
+    private final Map<String, Counter> downloads = new ConcurrentHashMap<>();
+    private final Map<String, Counter> referers = new ConcurrentHashMap<>();
+
+    private final LongAdder totalViews = new LongAdder();
+    private final LongAdder totalDownloads = new LongAdder();
+
+    ViewCounters(final DataSource database) throws SQLException {
+        this.database = database;
+
+        try (final Connection connection = database.getConnection()) {
+            try (final Statement statement = connection.createStatement()) {
+                statement.execute("CREATE CACHED TABLE IF NOT EXISTS VIEWS (NAME VARCHAR(5) PRIMARY KEY, AMOUNT BIGINT)");
+                statement.execute("CREATE CACHED TABLE IF NOT EXISTS DOWNLOADS (NAME VARCHAR(5) PRIMARY KEY, AMOUNT BIGINT)");
+                statement.execute("CREATE CACHED TABLE IF NOT EXISTS VIEWS_BY_REFERER (REFERER VARCHAR(253) PRIMARY KEY, AMOUNT BIGINT)");
+            }
+
+            checkLayout(connection, "VIEWS", "NAME");
+            checkLayout(connection, "DOWNLOADS", "NAME");
+            checkLayout(connection, "VIEWS_BY_REFERER", "REFERER");
+        }
+    }
+
+    /**
+     * The merge only writes the key and the amount, any other column has to be able to stay empty.
+     */
+    private static void checkLayout(final Connection connection, final String table, final String keyColumn) throws SQLException {
+        final Set<String> required = new HashSet<>(Arrays.asList(keyColumn, "AMOUNT"));
+
+        try (final ResultSet columns = connection.getMetaData().getColumns(null, connection.getSchema(), table, null)) {
+            while (columns.next()) {
+                final String column = columns.getString("COLUMN_NAME");
+                final boolean canStayEmpty = columns.getInt("NULLABLE") != DatabaseMetaData.columnNoNulls
+                        || columns.getString("COLUMN_DEF") != null
+                        || "YES".equals(columns.getString("IS_AUTOINCREMENT"));
+
+                if (!required.remove(column) && !canStayEmpty) {
+                    throw new SQLException(table + "." + column + " would be left empty by the counter flush");
+                }
+            }
+        }
+
+        if (!required.isEmpty()) {
+            throw new SQLException(table + " lacks the columns " + required);
+        }
+    }
+
+    void recordView(final String name, final String referer) {
+        increment(views, name);
+        totalViews.increment();
+
+        final String refererHost = refererHost(referer);
+
+        if (refererHost != null) {
+            increment(referers, referers.size() < MAX_REFERERS ? refererHost : OTHER_REFERER);
+        }
+    }
+
+    void recordDownload(final String name) {
+        increment(downloads, name);
+        totalDownloads.increment();
+    }
+
+    private static void increment(final Map<String, Counter> counters, final String key) {
+        Counter counter = counters.get(key);
+
+        if (counter == null) {
+            counter = counters.computeIfAbsent(key, ignored -> new Counter());
+        }
+
+        counter.total.increment();
+    }
+
+    private static String refererHost(final String referer) {
+        if (referer == null) {
+            return null;
+        }
+
+        try {
+            final String host = new URI(referer).getHost();
+
+            if (host == null) {
+                return null;
+            }
+
+            final String normalized = host.toLowerCase(Locale.ROOT);
+
+            return HOST_PATTERN.matcher(normalized).matches() ? normalized : null;
+        } catch (final URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes everything counted since the last flush. A failed table is retried on the next flush.
+     * Must not be called concurrently.
+     */
+    void flush() {
+        flush("VIEWS", "NAME", views);
+        flush("DOWNLOADS", "NAME", downloads);
+        flush("VIEWS_BY_REFERER", "REFERER", referers);
+    }
+
+    private void flush(final String table, final String keyColumn, final Map<String, Counter> counters) {
+        final List<Map.Entry<String, Counter>> dirty = new ArrayList<>();
+        final List<Long> snapshots = new ArrayList<>();
+
+        for (final Map.Entry<String, Counter> entry : counters.entrySet()) {
+            final long total = entry.getValue().get();
+
+            if (total != entry.getValue().flushed) {
+                dirty.add(entry);
+                snapshots.add(total);
+            }
+        }
+
+        if (dirty.isEmpty()) {
+            return;
+        }
+
+        try (final Connection connection = database.getConnection()) {
+            connection.setAutoCommit(false);
+
+            try (final PreparedStatement merge = connection.prepareStatement(String.format(MERGE_TEMPLATE, table, keyColumn))) {
+                for (int i = 0; i < dirty.size(); i++) {
+                    merge.setString(1, dirty.get(i).getKey());
+                    merge.setLong(2, snapshots.get(i) - dirty.get(i).getValue().flushed);
+                    merge.addBatch();
+                }
+
+                merge.executeBatch();
+                connection.commit();
+            } catch (final SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (final SQLException e) {
+            log.error("Unable to flush {} counters to {}", dirty.size(), table, e);
+
+            return;
+        }
+
+        for (int i = 0; i < dirty.size(); i++) {
+            dirty.get(i).getValue().flushed = snapshots.get(i);
+        }
+    }
+
+    long getViews(final String name) {
+        final Counter counter = views.get(name);
+
+        return counter == null ? 0 : counter.get();
+    }
+
+    long getDownloads(final String name) {
+        final Counter counter = downloads.get(name);
+
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Counts since startup, with the most viewed images and the top referers.
+     */
+    String toJson(final int limit) {
+        final StringBuilder json = new StringBuilder();
+
+        json.append("{ \"views\": ").append(totalViews.sum())
+                .append(", \"downloads\": ").append(totalDownloads.sum())
+                .append(", \"images\": [");
+
+        String separator = "";
+
+        for (final Map.Entry<String, Long> image : top(views, limit)) {
+            json.append(separator)
+                    .append("{ \"name\": \"").append(image.getKey())
+                    .append("\", \"views\": ").append(image.getValue())
+                    .append(", \"downloads\": ").append(getDownloads(image.getKey()))
+                    .append(" }");
+
+            separator = ", ";
+        }
+
+        json.append("], \"referers\": [");
+
+        separator = "";
+
+        for (final Map.Entry<String, Long> referer : top(referers, limit)) {
+            json.append(separator)
+                    .append("{ \"referer\": \"").append(referer.getKey())
+                    .append("\", \"views\": ").append(referer.getValue())
+                    .append(" }");
+
+            separator = ", ";
+        }
+
+        return json.append("] }").toString();
+    }
+
+    private static List<Map.Entry<String, Long>> top(final Map<String, Counter> counters, final int limit) {
+        final Comparator<Map.Entry<String, Long>> byCount = Map.Entry.comparingByValue();
+        final PriorityQueue<Map.Entry<String, Long>> top = new PriorityQueue<>(limit + 1, byCount);
+
+        for (final Map.Entry<String, Counter> entry : counters.entrySet()) {
+            top.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue().get()));
+
+            if (top.size() > limit) {
+                top.poll();
+            }
+        }
+
+        final List<Map.Entry<String, Long>> result = new ArrayList<>(top);
+        result.sort(byCount.reversed());
+
+        return result;
+    }
+}
@@ -0,0 +1,100 @@
+package com.dg.sites;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ByteRangesTest {
+    private static final long LENGTH = 1000;
+
+    @Test
+    public void parsesSuffixRange() {
+        final List<long[]> ranges = ByteRanges.parse("bytes=-100", LENGTH);
+
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[] { 900, 999 }, ranges.get(0));
+    }
+
+    @Test
+    public void clampsSuffixLongerThanBody() {
+        final List<long[]> ranges = ByteRanges.parse("bytes=-5000", LENGTH);
+
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[] { 0, 999 }, ranges.get(0));
+    }
+
+    @Test
+    public void emptySuffixIsUnsatisfiable() {
+        assertTrue(ByteRanges.parse("bytes=-0", LENGTH).isEmpty());
+    }
+
+    @Test
+    public void parsesOpenEndedRange() {
+        final List<long[]> ranges = ByteRanges.parse("bytes=250-", LENGTH);
+
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[] { 250, 999 }, ranges.get(0));
+    }
+
+    @Test
+    public void keepsOverlappingRangesInOrder() {
+        final List<long[]> ranges = ByteRanges.parse("bytes=0-499, 400-999, -100", LENGTH);
+
+        assertEquals(3, ranges.size());
+        assertArrayEquals(new long[] { 0, 499 }, ranges.get(0));
+        assertArrayEquals(new long[] { 400, 999 }, ranges.get(1));
+        assertArrayEquals(new long[] { 900, 999 }, ranges.get(2));
+    }
+
+    @Test
+    public void clampsLastPastTheEnd() {
+        final List<long[]> ranges = ByteRanges.parse("bytes=500-5000", LENGTH);
+
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[] { 500, 999 }, ranges.get(0));
+    }
+
+    @Test
+    public void dropsRangesStartingPastTheEnd() {
+        assertTrue(ByteRanges.parse("bytes=1000-", LENGTH).isEmpty());
+        assertTrue(ByteRanges.parse("bytes=1000-1999", LENGTH).isEmpty());
+
+        final List<long[]> ranges = ByteRanges.parse("bytes=2000-2999,0-0", LENGTH);
+
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[] { 0, 0 }, ranges.get(0));
+    }
+
+    @Test
+    public void nothingIsSatisfiableInAnEmptyBody() {
+        assertTrue(ByteRanges.parse("bytes=-10", 0).isEmpty());
+        assertTrue(ByteRanges.parse("bytes=0-", 0).isEmpty());
+    }
+
+    @Test
+    public void ignoresInvalidHeaders() {
+        assertNull(ByteRanges.parse(null, LENGTH));
+        assertNull(ByteRanges.parse("items=0-1", LENGTH));
+        assertNull(ByteRanges.parse("bytes=500-400", LENGTH));
+        assertNull(ByteRanges.parse("bytes=abc", LENGTH));
+        assertNull(ByteRanges.parse("bytes=1-x", LENGTH));
+        assertNull(ByteRanges.parse("bytes=--5", LENGTH));
+        assertNull(ByteRanges.parse("bytes=+1-", LENGTH));
+    }
+
+    @Test
+    public void ignoresTooManyRanges() {
+        final StringBuilder header = new StringBuilder("bytes=0-0");
+
+        for (int i = 1; i <= 16; i++) {
+            header.append(',').append(i).append('-').append(i);
+        }
+
+        assertNull(ByteRanges.parse(header.toString(), LENGTH));
+    }
+}
@@ -0,0 +1,180 @@
+package com.dg.sites;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DownscalerTest {
+    private static final int[][] SIZES = {
+            // source width, source height, target width, target height
+            { 300, 200, 64, 48 },
+            { 100, 100, 50, 50 },
+            { 7, 5, 3, 2 },
+            { 640, 40, 33, 31 },
+            { 10, 10, 23, 17 }
+    };
+
+    private static final int[] TYPES = {
+            BufferedImage.TYPE_INT_RGB,
+            BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_3BYTE_BGR,
+            BufferedImage.TYPE_4BYTE_ABGR,
+            BufferedImage.TYPE_BYTE_GRAY,
+            BufferedImage.TYPE_BYTE_INDEXED,
+            // Not one of the fast paths
+            BufferedImage.TYPE_INT_BGR
+    };
+
+    @Test
+    public void matchesReferenceResize() {
+        final Random random = new Random(42);
+
+        for (final int type : TYPES) {
+            for (final int[] size : SIZES) {
+                final BufferedImage source = randomImage(random, type, size[0], size[1]);
+                final BufferedImage result = Downscaler.downscale(source, size[2], size[3]);
+
+                assertEquals(BufferedImage.TYPE_INT_ARGB, result.getType());
+                assertEquals(size[2], result.getWidth());
+                assertEquals(size[3], result.getHeight());
+
+                assertClose("type " + type + " " + size[0] + "x" + size[1], referenceResize(source, size[2], size[3]), result);
+            }
+        }
+    }
+
+    @Test
+    public void keepsUniformColor() {
+        final BufferedImage source = new BufferedImage(123, 77, BufferedImage.TYPE_3BYTE_BGR);
+
+        for (int y = 0; y < source.getHeight(); y++) {
+            for (int x = 0; x < source.getWidth(); x++) {
+                source.setRGB(x, y, 0x3c7fa1);
+            }
+        }
+
+        final BufferedImage result = Downscaler.downscale(source, 20, 13);
+
+        for (int y = 0; y < result.getHeight(); y++) {
+            for (int x = 0; x < result.getWidth(); x++) {
+                assertEquals(0xff3c7fa1, result.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void readsSubimagesThroughTheGenericPath() {
+        final Random random = new Random(7);
+        final BufferedImage parent = randomImage(random, BufferedImage.TYPE_INT_RGB, 90, 70);
+        final BufferedImage subimage = parent.getSubimage(10, 5, 60, 50);
+
+        assertClose("subimage", referenceResize(subimage, 17, 14), Downscaler.downscale(subimage, 17, 14));
+    }
+
+    private static BufferedImage randomImage(final Random random, final int type, final int width, final int height) {
+        final BufferedImage image = new BufferedImage(width, height, type);
+        final boolean alpha = image.getColorModel().hasAlpha();
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (type == BufferedImage.TYPE_BYTE_GRAY) {
+                    image.getRaster().setSample(x, y, 0, random.nextInt(256));
+                } else {
+                    image.setRGB(x, y, alpha ? random.nextInt() : random.nextInt() | 0xff000000);
+                }
+            }
+        }
+
+        return image;
+    }
+
+    /**
+     * Gray samples are taken as they are, like image decoders mean them, not through the linear gray color space.
+     */
+    private static int argb(final BufferedImage image, final int x, final int y) {
+        if (image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+            final int gray = image.getRaster().getSample(x, y, 0);
+
+            return 0xff000000 | gray << 16 | gray << 8 | gray;
+        }
+
+        return image.getRGB(x, y);
+    }
+
+    private static double tent(final int source, final int target, final int sourceSize, final int targetSize) {
+        final double scale = sourceSize / (double) targetSize;
+        final double support = Math.max(1.0, scale);
+        final double center = (target + 0.5) * scale;
+
+        return Math.max(0, 1.0 - Math.abs((source + 0.5 - center) / support));
+    }
+
+    /**
+     * Same tent filter, as a plain two dimensional sum in doubles over premultiplied pixels.
+     */
+    private static double[][][] referenceResize(final BufferedImage source, final int targetWidth, final int targetHeight) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final double[][][] result = new double[targetHeight][targetWidth][];
+
+        for (int ty = 0; ty < targetHeight; ty++) {
+            for (int tx = 0; tx < targetWidth; tx++) {
+                double total = 0, a = 0, r = 0, g = 0, b = 0;
+
+                for (int y = 0; y < height; y++) {
+                    final double weightY = tent(y, ty, height, targetHeight);
+
+                    if (weightY == 0) {
+                        continue;
+                    }
+
+                    for (int x = 0; x < width; x++) {
+                        final double weight = weightY * tent(x, tx, width, targetWidth);
+
+                        if (weight == 0) {
+                            continue;
+                        }
+
+                        final int pixel = argb(source, x, y);
+                        final double alphaWeight = (pixel >>> 24) * weight;
+
+                        total += weight;
+                        a += alphaWeight;
+                        r += ((pixel >> 16) & 0xff) * alphaWeight;
+                        g += ((pixel >> 8) & 0xff) * alphaWeight;
+                        b += (pixel & 0xff) * alphaWeight;
+                    }
+                }
+
+                result[ty][tx] = new double[] { a / total, r / a, g / a, b / a };
+            }
+        }
+
+        return result;
+    }
+
+    private static void assertClose(final String message, final double[][][] expected, final BufferedImage actual) {
+        for (int y = 0; y < actual.getHeight(); y++) {
+            for (int x = 0; x < actual.getWidth(); x++) {
+                final int pixel = actual.getRGB(x, y);
+                final double[] reference = expected[y][x];
+                final String at = message + " at " + x + "," + y;
+
+                assertTrue(at + " alpha", Math.abs((pixel >>> 24) - reference[0]) <= 1);
+
+                // Color is undefined for pixels which end up transparent
+                if (reference[0] < 1) {
+                    continue;
+                }
+
+                assertTrue(at + " red", Math.abs(((pixel >> 16) & 0xff) - reference[1]) <= 1);
+                assertTrue(at + " green", Math.abs(((pixel >> 8) & 0xff) - reference[2]) <= 1);
+                assertTrue(at + " blue", Math.abs((pixel & 0xff) - reference[3]) <= 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.dg.sites;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ImageStoreTest {
+    private static final int RECORD_HEADER_SIZE = 20;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Path root;
+    private Path segment;
+
+    @Before
+    public void setUp() {
+        root = folder.getRoot().toPath();
+        segment = root.resolve("mini").resolve("thumbnails-0000.pack");
+    }
+
+    @Test
+    public void findsThumbnailsAfterReopen() throws IOException {
+        final ImageStore store = new ImageStore(root);
+
+        store.writeThumbnail("kaqen", bytes(100, 1));
+        store.writeThumbnail("bonyx", bytes(3000, 2));
+
+        final ImageStore reopened = new ImageStore(root);
+
+        assertArrayEquals(bytes(100, 1), reopened.readThumbnail("kaqen").getContents());
+        assertArrayEquals(bytes(3000, 2), reopened.readThumbnail("bonyx").getContents());
+        assertNull(reopened.readThumbnail("ramic"));
+    }
+
+    @Test
+    public void laterRecordWins() throws IOException {
+        final ImageStore store = new ImageStore(root);
+
+        store.writeThumbnail("kaqen", bytes(100, 1));
+        store.writeThumbnail("kaqen", bytes(50, 2));
+
+        assertArrayEquals(bytes(50, 2), store.readThumbnail("kaqen").getContents());
+        assertArrayEquals(bytes(50, 2), new ImageStore(root).readThumbnail("kaqen").getContents());
+    }
+
+    @Test
+    public void tombstoneSurvivesReopen() throws IOException {
+        final ImageStore store = new ImageStore(root);
+
+        store.writeThumbnail("kaqen", bytes(100, 1));
+        store.writeThumbnail("bonyx", bytes(100, 2));
+        store.deleteThumbnail("kaqen");
+
+        assertNull(store.readThumbnail("kaqen"));
+
+        final ImageStore reopened = new ImageStore(root);
+
+        assertNull(reopened.readThumbnail("kaqen"));
+        assertArrayEquals(bytes(100, 2), reopened.readThumbnail("bonyx").getContents());
+
+        reopened.writeThumbnail("kaqen", bytes(70, 3));
+
+        assertArrayEquals(bytes(70, 3), new ImageStore(root).readThumbnail("kaqen").getContents());
+    }
+
+    @Test
+    public void tombstoneOnlyForStoredThumbnails() throws IOException {
+        final ImageStore store = new ImageStore(root);
+
+        store.writeThumbnail("kaqen", bytes(100, 1));
+
+        final long size = Files.size(segment);
+
+        store.deleteThumbnail("bonyx");
+
+        assertEquals(size, Files.size(segment));
+
+        store.deleteThumbnail("kaqen");
+        store.deleteThumbnail("kaqen");
+
+        assertEquals(size + RECORD_HEADER_SIZE, Files.size(segment));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEmptyThumbnail() throws IOException {
+        new ImageStore(root).writeThumbnail("kaqen", new byte[0]);
+    }
+
+    @Test
+    public void cutsOffRecordWithTruncatedBody() throws IOException {
+        final ImageStore store = new ImageStore(root);
+
+        store.writeThumbnail("kaqen", bytes(100, 1));
+        store.writeThumbnail("bonyx", bytes(100, 2));
+
+        final long complete = RECORD_HEADER_SIZE + 100;
+
+        truncate(complete + RECORD_HEADER_SIZE + 40);
+
+        final ImageStore reopened = new ImageStore(root);
+
+        assertArrayEquals(bytes(100, 1), reopened.readThumbnail("kaqen").getContents());
+        assertNull(reopened.readThumbnail("bonyx"));
+        assertEquals(complete, Files.size(segment));
+
+        // Appends continue where the intact records end
+        reopened.writeThumbnail("ramic", bytes(10, 3));
+
+        assertArrayEquals(bytes(10, 3), new ImageStore(root).readThumbnail("ramic").getContents());
+    }
+
+    @Test
+    public void cutsOffTruncatedHeader() throws IOException {
+        final ImageStore store = new ImageStore(root);
+
+        store.writeThumbnail("kaqen", bytes(100, 1));
+        store.writeThumbnail("bonyx", bytes(100, 2));
+
+        truncate(RECORD_HEADER_SIZE + 100 + 7);
+
+        final ImageStore reopened = new ImageStore(root);
+
+        assertArrayEquals(bytes(100, 1), reopened.readThumbnail("kaqen").getContents());
+        assertNull(reopened.readThumbnail("bonyx"));
+        assertEquals(RECORD_HEADER_SIZE + 100, Files.size(segment));
+    }
+
+    @Test
+    public void cutsOffLastRecordWithWrongChecksum() throws IOException {
+        final ImageStore store = new ImageStore(root);
+
+        store.writeThumbnail("kaqen", bytes(100, 1));
+        store.writeThumbnail("bonyx", bytes(100, 2));
+
+        // Header of the torn record made it to disk, part of the body did not
+        try (final RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(file.length() - 1);
+            file.write(0);
+        }
+
+        final ImageStore reopened = new ImageStore(root);
+
+        assertArrayEquals(bytes(100, 1), reopened.readThumbnail("kaqen").getContents());
+        assertNull(reopened.readThumbnail("bonyx"));
+        assertEquals(RECORD_HEADER_SIZE + 100, Files.size(segment));
+    }
+
+    @Test
+    public void keepsTombstoneAsLastRecord() throws IOException {
+        final ImageStore store = new ImageStore(root);
+
+        store.writeThumbnail("kaqen", bytes(100, 1));
+        store.deleteThumbnail("kaqen");
+
+        final long size = Files.size(segment);
+        final ImageStore reopened = new ImageStore(root);
+
+        assertNull(reopened.readThumbnail("kaqen"));
+        assertEquals(size, Files.size(segment));
+    }
+
+    private void truncate(final long length) throws IOException {
+        try (final RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.setLength(length);
+        }
+    }
+
+    private static byte[] bytes(final int length, final int seed) {
+        final byte[] data = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+
+        return data;
+    }
+}
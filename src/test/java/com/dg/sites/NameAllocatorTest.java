@@ -0,0 +1,63 @@
+package com.dg.sites;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NameAllocatorTest {
+    @Test
+    public void parsesEveryNameLikeEncodeWord() {
+        final BitSet seen = new BitSet(NameAllocator.TOTAL_NAMES);
+
+        for (final char c1 : NameAllocator.CONSONANTS) {
+            for (final char c2 : NameAllocator.VOWELS) {
+                for (final char c3 : NameAllocator.CONSONANTS) {
+                    for (final char c4 : NameAllocator.VOWELS) {
+                        for (final char c5 : NameAllocator.CONSONANTS) {
+                            final String name = new String(new char[] { c1, c2, c3, c4, c5 });
+                            final int encoded = NameAllocator.encodeWord(name);
+                            final int nameIndex = NameAllocator.nameIndex(encoded);
+
+                            assertTrue(name, NameAllocator.isValidWord(name));
+                            assertEquals(name, NameAllocator.decodeWord(encoded));
+                            assertEquals(name, nameIndex << 1, NameAllocator.parseImagePath("/" + name));
+                            assertEquals(name, nameIndex << 1 | 1, NameAllocator.parseImagePath("/" + name + ".mini"));
+
+                            assertTrue(name, nameIndex >= 0 && nameIndex < NameAllocator.TOTAL_NAMES);
+                            assertFalse(name, seen.get(nameIndex));
+
+                            seen.set(nameIndex);
+                        }
+                    }
+                }
+            }
+        }
+
+        assertEquals(NameAllocator.TOTAL_NAMES, seen.cardinality());
+    }
+
+    @Test
+    public void rejectsOtherPaths() {
+        final String[] paths = {
+                "", "/", "/kaqe", "/kaqenq", "kaqen", "xkaqen", "/kaqen.jpg", "/kaqen.MINI", "/kaqen.mino",
+                "/kaqen/mini", "/akaqe", "/kaaen", "/kaqqn", "/Kaqen", "/ka1en", "/ka{en", "/ka`en", "/ka\u00e9en"
+        };
+
+        for (final String path : paths) {
+            assertEquals(path, -1, NameAllocator.parseImagePath(path));
+        }
+    }
+
+    @Test
+    public void rejectsInvalidWords() {
+        assertFalse(NameAllocator.isValidWord(null));
+        assertFalse(NameAllocator.isValidWord("kaqe"));
+        assertFalse(NameAllocator.isValidWord("kaqenq"));
+        assertFalse(NameAllocator.isValidWord("akaqe"));
+        assertFalse(NameAllocator.isValidWord("KAQEN"));
+    }
+}